@@ -12,8 +12,10 @@ for i in rpm deb; do
   1. azruecat - Output a blob content to stdout.
   2. azuresink - Pipe stdin to a azure storage blob.
   3. azuresas - Generate the Shared-Access-Signature to stdout.
-  4. azuretbl2csv - Dump azure table as csv file.
-  5. azuretbl2json - Dump azure table as json file.
+  4. azurecp - Copy blobs on the server side.
+  5. azuretbl2csv - Dump azure table as csv file.
+  6. azuretbl2json - Dump azure table as json file.
+  7. azurekit - Run many of the commands above in one process.
 
   For more details, please check https://github.com/tenmax/azurekit .
   " \
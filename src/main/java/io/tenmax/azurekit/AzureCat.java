@@ -1,17 +1,30 @@
 package io.tenmax.azurekit;
 
+import com.microsoft.azure.storage.AccessCondition;
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.Constants;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.*;
 import io.tenmax.azurekit.azure.AccountUtils;
+import io.tenmax.azurekit.azure.BlobResolver;
+import io.tenmax.azurekit.blob.BlobCache;
+import io.tenmax.azurekit.blob.BlobFollower;
+import io.tenmax.azurekit.blob.BlobLister;
+import io.tenmax.azurekit.blob.BlobPrefetcher;
+import io.tenmax.azurekit.blob.BlobRange;
+import io.tenmax.azurekit.blob.ParallelRangeInputStream;
+import io.tenmax.azurekit.io.BrokenPipeException;
+import io.tenmax.azurekit.io.BufferPool;
+import io.tenmax.azurekit.io.ChannelOutputStream;
+import io.tenmax.azurekit.io.ParallelGzipInputStream;
 import org.apache.commons.cli.*;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.List;
@@ -19,9 +32,17 @@ import java.util.zip.GZIPInputStream;
 
 public class AzureCat {
     private static final int READ_SIZE = 64 * 1024;
+    private static final int RANGE_SIZE = 4;
+    private static final int READ_AHEAD_SIZE = 64;
+    private static final int CACHE_SIZE = 1024;
+    private static final int MAX_MEMORY = (int) (BufferPool.DEFAULT_MAX_BYTES / Constants.MB);
+    private static final int FOLLOW_INTERVAL = 1000;
+    private static final int MAX_FOLLOW_INTERVAL = 30 * 1000;
 
     private CommandLine commandLine = null;
     private List<CloudStorageAccount> accounts = new ArrayList<CloudStorageAccount>();
+    private ChannelOutputStream out = ChannelOutputStream.stdout();
+    private BlobCache cache = null;
 
     private void parseArgs(String[] args) {
         // create the command line parser
@@ -31,19 +52,90 @@ public class AzureCat {
         Options options = new Options();
         options.addOption("b", true, "Set the read buffer size in KBytes");
         options.addOption("c", true, "The connection string");
+        options.addOption("f", "follow", false, "Keep printing the bytes appended to the blob");
         options.addOption("h", false, "The help information");
+        options.addOption("p", true, "The number of ranges of a blob downloaded and gzip members decoded in parallel. (default=1)");
         options.addOption("v", false, "The version");
         options.addOption("z", false, "The gzip format");
         options.addOption(Option.builder()
                 .longOpt("prefix")
                 .desc("cat all the blobs with the prefix")
                 .build());
+        options.addOption(Option.builder()
+                .longOpt("read-ahead")
+                .argName("count")
+                .hasArg(true)
+                .desc("The number of upcoming blobs downloaded in the background while prefix is used. (default=0)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("read-ahead-size")
+                .argName("MBytes")
+                .hasArg(true)
+                .desc("The maximum bytes of the blobs downloaded in the background. (default=" + READ_AHEAD_SIZE + "MB)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("follow-interval")
+                .argName("millis")
+                .hasArg(true)
+                .desc("The interval to poll the blob while following. It backs off up to " +
+                        MAX_FOLLOW_INTERVAL / 1000 + "s while the blob is unchanged. (default=" + FOLLOW_INTERVAL + "ms)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("max-memory")
+                .argName("MBytes")
+                .hasArg(true)
+                .desc("The maximum size of the pooled range, copy and block buffers. (default=" + MAX_MEMORY + "MB)")
+                .build());
         options.addOption(Option.builder()
                 .longOpt("postfix")
                 .argName("string")
                 .hasArg(true)
                 .desc("keep only the blob which has the path with the specified postfix. The postfix only be used while prefix is used.")
                 .build());
+        OptionGroup rangeOptions = new OptionGroup();
+        rangeOptions.addOption(Option.builder()
+                .longOpt("range")
+                .argName("start-end")
+                .hasArg(true)
+                .desc("Print only the bytes from start to end (inclusive). Use 'start-' to read to the end or '-count' for the last bytes")
+                .build());
+        rangeOptions.addOption(Option.builder()
+                .longOpt("head-bytes")
+                .argName("count")
+                .hasArg(true)
+                .desc("Print only the first bytes of the blob")
+                .build());
+        rangeOptions.addOption(Option.builder()
+                .longOpt("tail-bytes")
+                .argName("count")
+                .hasArg(true)
+                .desc("Print only the last bytes of the blob")
+                .build());
+        rangeOptions.addOption(Option.builder()
+                .longOpt("tail-lines")
+                .argName("count")
+                .hasArg(true)
+                .desc("Print only the last lines of the blob")
+                .build());
+        options.addOptionGroup(rangeOptions);
+        options.addOption(Option.builder()
+                .longOpt("cache-dir")
+                .argName("dir")
+                .hasArg(true)
+                .desc("Keep the downloaded blobs in the directory and reuse them while the blob is unchanged")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("cache-size")
+                .argName("MBytes")
+                .hasArg(true)
+                .desc("The maximum size of the cache directory. (default=" + CACHE_SIZE + "MB)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("range-size")
+                .argName("MBytes")
+                .hasArg(true)
+                .desc("The size of each range downloaded in parallel. Only used while -p is greater than 1. (default=" + RANGE_SIZE + "MB)")
+                .build());
 
 
         try {
@@ -51,7 +143,7 @@ public class AzureCat {
             commandLine = parser.parse(options, args);
         } catch (ParseException e) {
             System.out.println("Unexpected exception:" + e.getMessage());
-            System.exit(1);
+            Exit.exit(1);
         }
 
         if (commandLine.hasOption('v')) {
@@ -60,12 +152,20 @@ public class AzureCat {
             printHelp(options);
         } else if (commandLine.getArgs().length != 1) {
             printHelp(options);
+        } else if (commandLine.hasOption("follow") &&
+                (commandLine.hasOption("prefix") || commandLine.hasOption("z"))) {
+            System.err.println("--follow can't be used with --prefix or -z");
+            Exit.exit(1);
+        } else if ((long) Constants.MB * Integer.parseInt(commandLine.getOptionValue("max-memory", "" + MAX_MEMORY)) <
+                (long) getReadSize() + getRangeSize()) {
+            System.err.println("--max-memory must hold the read buffer and a range");
+            Exit.exit(1);
         }
     }
 
     private void printVersion() {
         System.out.println("azurecat version " + Consts.VERSION);
-        System.exit(0);
+        Exit.exit(0);
     }
 
     private void printHelp(Options options) {
@@ -73,13 +173,15 @@ public class AzureCat {
         String cmdLineSyntax =
                 "azurecat [-c <connection-string>] <blob-uri>";
         formatter.printHelp(cmdLineSyntax, options);
-        System.exit(0);
+        Exit.exit(0);
     }
 
     public AzureCat(String[] args) {
         parseArgs(args);
 
         accounts = AccountUtils.readAccounts(commandLine.getOptionValue('c', ""));
+        BufferPool.setMaxBytes((long) Constants.MB *
+                Integer.parseInt(commandLine.getOptionValue("max-memory", "" + MAX_MEMORY)));
 
         boolean prefixMode = commandLine.hasOption("prefix");
         String postfix = commandLine.hasOption("postfix") ?
@@ -96,36 +198,49 @@ public class AzureCat {
         URI blobUri = URI.create(path);
         CloudStorageAccount account = AccountUtils.getAccountFromUri(accounts, blobUri);
 
+        if (commandLine.hasOption("cache-dir")) {
+            long cacheSize = (long) Constants.MB *
+                    Integer.parseInt(commandLine.getOptionValue("cache-size", "" + CACHE_SIZE));
+            try {
+                cache = new BlobCache(new File(commandLine.getOptionValue("cache-dir")), cacheSize);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Exit.exit(-1);
+            }
+        }
+
         if (prefixMode) {
             catPrefix(account, blobUri, postfix);
         } else {
             catOne(account, blobUri);
         }
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            // the reader has gone away
+        }
     }
 
     private void catOne(CloudStorageAccount account, URI blobUri) {
 
         try {
-            String container = blobUri.getPath().split("/")[1];
-            String path = blobUri.getPath().substring(2 + container.length());
-
-            CloudBlobClient blobClient = account.createCloudBlobClient();
-            CloudBlobContainer blobContainer = blobClient.getContainerReference(container);
-            Iterable<ListBlobItem> blobs = blobContainer.listBlobs(path);
-
-            boolean found = false;
-            for (ListBlobItem blobItem : blobs) {
-                if (blobItem instanceof CloudBlob) {
-                    CloudBlob blob = (CloudBlob) blobItem;
-                    if (blob.getUri().equals(blobUri)) {
-                        printBlob(blob);
-                        return;
-                    }
-                }
+            CloudBlob blob = BlobResolver.resolve(account, blobUri);
+            if (blob == null) {
+                System.err.println("Can't find blob at " + blobUri);
+                return;
             }
 
-            System.err.println("Can't find blob at " + blobUri);
-            return;
+            printBlob(blob);
+
+            if (commandLine.hasOption("follow")) {
+                long interval = Long.parseLong(commandLine.getOptionValue("follow-interval", "" + FOLLOW_INTERVAL));
+                out.flush();
+                new BlobFollower(blob, blob.getProperties().getLength(), interval, MAX_FOLLOW_INTERVAL)
+                        .follow(out);
+            }
+        } catch (BrokenPipeException e) {
+            // the reader has gone away
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -136,93 +251,170 @@ public class AzureCat {
             URI blobUri,
             String postfix) {
 
-        try {
-            String container = blobUri.getPath().split("/")[1];
-            String path = blobUri.getPath().substring(2 + container.length());
-
-            CloudBlobClient blobClient = account.createCloudBlobClient();
-            CloudBlobContainer blobContainer = blobClient.getContainerReference(container);
-            Iterable<ListBlobItem> blobs = blobContainer.listBlobs(path);
-            for (ListBlobItem blobItem : blobs) {
-
-                if (blobItem instanceof CloudBlob) {
-                    CloudBlob blob = (CloudBlob) blobItem;
-
-                    if (postfix != null &&
-                            !blob.getUri().toString().endsWith(postfix)) {
-                        continue;
-                    }
-
-                    try {
-                        printBlob(blob);
-                    } catch (Exception e) {
-                        System.err.println("Can't print the blob at " + blob.getUri());
-                        e.printStackTrace();
-                        System.exit(-1);
-                    }
-                } else if (blobItem instanceof CloudBlobDirectory) {
-                    catDirectory((CloudBlobDirectory) blobItem, postfix);
+        // the prefetcher downloads whole blobs, which defeats reading a part of them
+        int readAhead = hasRangeOption() ? 0 : Integer.parseInt(commandLine.getOptionValue("read-ahead", "0"));
+        long readAheadSize = (long) Constants.MB *
+                Integer.parseInt(commandLine.getOptionValue("read-ahead-size", "" + READ_AHEAD_SIZE));
+        // gzip blobs are inflated by the prefetching threads, one blob per thread,
+        // unless they are kept compressed in the cache
+        BlobPrefetcher.Decoder decoder =
+                commandLine.hasOption("z") && cache == null ? ParallelGzipInputStream::inflate : null;
+        BlobPrefetcher prefetcher = new BlobPrefetcher(readAhead, readAheadSize, decoder, (blob, prefetched) -> {
+            try {
+                printBlob(blob, prefetched);
+            } catch (BrokenPipeException e) {
+                throw e;
+            } catch (Exception e) {
+                System.err.println("Can't print the blob at " + blob.getUri());
+                e.printStackTrace();
+                try {
+                    // keep the blobs printed before it, which are still in the buffer
+                    out.flush();
+                } catch (IOException flushFailure) {
+                    // the reader has gone away
+                } finally {
+                    Exit.exit(-1);
                 }
+            }
+        });
 
-                if (System.out.checkError()) {
-                    break;
+        try {
+            CloudBlobContainer blobContainer = BlobResolver.getContainer(account, blobUri);
+            String path = BlobResolver.getBlobName(blobUri);
+
+            try (BlobLister lister = new BlobLister(blobContainer, path, postfix)) {
+                CloudBlob blob;
+                while ((blob = lister.next()) != null) {
+                    // a cached blob is read from the cache instead
+                    prefetcher.add(blob, cache == null || cache.lookup(blob) == null);
                 }
             }
+
+            prefetcher.finish();
+        } catch (BrokenPipeException e) {
+            // the reader has gone away
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            prefetcher.close();
         }
     }
 
-    private void catDirectory(CloudBlobDirectory directory,
-                              String postfix)
-            throws URISyntaxException, StorageException, IOException {
-        Iterable<ListBlobItem> blobs = directory.listBlobs();
-        for (ListBlobItem blobItem : blobs) {
-            if (blobItem instanceof CloudBlob) {
-                CloudBlob blob = (CloudBlob) blobItem;
+    private void printBlob(CloudBlob blob) throws StorageException, IOException, InterruptedException {
+        printBlob(blob, null);
+    }
 
-                if (postfix != null &&
-                        !blob.getUri().toString().endsWith(postfix)) {
-                    continue;
-                }
+    private void printBlob(CloudBlob blob, InputStream prefetched)
+            throws StorageException, IOException, InterruptedException {
+        int readSize = getReadSize();
+        int parallelism = Integer.parseInt(commandLine.getOptionValue("p", "1"));
+        int rangeSize = getRangeSize();
 
-                printBlob(blob);
-            } else if (blobItem instanceof CloudBlobDirectory) {
-                catDirectory((CloudBlobDirectory) blobItem, postfix);
-            }
+        // take the copy buffer before the range reader fills the pool with read-ahead ranges
+        BufferPool pool = BufferPool.getInstance();
+        byte[] buffer = pool.acquire(readSize);
+        try {
+            printBlob(blob, prefetched, buffer, parallelism, rangeSize);
+        } finally {
+            pool.release(buffer);
         }
     }
 
+    private void printBlob(CloudBlob blob, InputStream prefetched, byte[] buffer, int parallelism, int rangeSize)
+            throws StorageException, IOException {
+        if (prefetched != null && cache == null) {
+            // already decoded by the prefetcher
+            copy(prefetched, buffer);
+            return;
+        }
+
+        InputStream in;
+        BlobRange range = getRange(blob);
+        if (range != null) {
+            in = new ParallelRangeInputStream(
+                    blob, range.getOffset(), range.getCount(), Math.max(parallelism, 1), rangeSize);
+        } else if (cache != null && cache.accepts(blob)) {
+            File cached = cache.lookup(blob);
+            if (cached == null) {
+                cached = cache.store(blob,
+                        prefetched != null ? prefetched : openBlob(blob, buffer.length, parallelism, rangeSize),
+                        buffer);
+            }
+
+            if (!commandLine.hasOption("z")) {
+                BlobCache.transfer(cached, out);
+                return;
+            }
+            in = new FileInputStream(cached);
+        } else {
+            in = prefetched != null ? prefetched : openBlob(blob, buffer.length, parallelism, rangeSize);
+        }
+
+        if (commandLine.hasOption("z")) {
+            in = parallelism > 1 ?
+                    new ParallelGzipInputStream(in, parallelism) :
+                    new GZIPInputStream(in);
+        }
 
-    private void printBlob(CloudBlob blob) throws StorageException, IOException {
-        int readSize = READ_SIZE;
+        copy(in, buffer);
+    }
 
+    private int getReadSize() {
         if (commandLine.hasOption("b")) {
-            readSize = Constants.KB * Integer.parseInt(commandLine.getOptionValue("b"));
+            return Constants.KB * Integer.parseInt(commandLine.getOptionValue("b"));
         }
-        blob.setStreamMinimumReadSizeInBytes(readSize);
-        InputStream in = blob.openInputStream();
+        return READ_SIZE;
+    }
 
+    private int getRangeSize() {
+        return Constants.MB * Integer.parseInt(commandLine.getOptionValue("range-size", "" + RANGE_SIZE));
+    }
 
-        if (commandLine.hasOption("z")) {
-            in = new GZIPInputStream(in);
+    private boolean hasRangeOption() {
+        return commandLine.hasOption("range") ||
+                commandLine.hasOption("head-bytes") ||
+                commandLine.hasOption("tail-bytes") ||
+                commandLine.hasOption("tail-lines");
+    }
+
+    private BlobRange getRange(CloudBlob blob) throws StorageException {
+        long length = blob.getProperties().getLength();
+
+        if (commandLine.hasOption("range")) {
+            return BlobRange.parse(commandLine.getOptionValue("range"), length);
+        } else if (commandLine.hasOption("head-bytes")) {
+            return BlobRange.headBytes(Long.parseLong(commandLine.getOptionValue("head-bytes")), length);
+        } else if (commandLine.hasOption("tail-bytes")) {
+            return BlobRange.tailBytes(Long.parseLong(commandLine.getOptionValue("tail-bytes")), length);
+        } else if (commandLine.hasOption("tail-lines")) {
+            return BlobRange.tailLines(blob, Integer.parseInt(commandLine.getOptionValue("tail-lines")), length);
         }
+        return null;
+    }
 
+    private InputStream openBlob(CloudBlob blob, int readSize, int parallelism, int rangeSize)
+            throws StorageException, IOException {
+        if (blob instanceof CloudAppendBlob) {
+            // read up to the resolved length, while the blob may grow
+            return new ParallelRangeInputStream(blob, Math.max(parallelism, 1), rangeSize);
+        }
+        if (parallelism > 1 && blob.getProperties().getLength() > rangeSize) {
+            return new ParallelRangeInputStream(blob, parallelism, rangeSize);
+        }
+
+        blob.setStreamMinimumReadSizeInBytes(readSize);
+        return blob.openInputStream(
+                AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag()), null, null);
+    }
+
+    private void copy(InputStream in, byte[] buffer) throws IOException {
         try {
-            byte[] buffer = new byte[readSize];
             int read;
             while ((read = in.read(buffer)) > 0) {
-                System.out.write(buffer, 0, read);
-                System.out.flush();
-
-                if (System.out.checkError()) {
-                    break;
-                }
+                out.write(buffer, 0, read);
             }
         } finally {
-            if (in != null) {
-                in.close();
-            }
+            in.close();
         }
     }
 
@@ -0,0 +1,189 @@
+package io.tenmax.azurekit;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.*;
+import io.tenmax.azurekit.azure.AccountUtils;
+import io.tenmax.azurekit.azure.BlobResolver;
+import io.tenmax.azurekit.azure.SasUtils;
+import io.tenmax.azurekit.blob.BlobCopier;
+import io.tenmax.azurekit.blob.BlobLister;
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AzureCopy {
+    private static final int COPIES = 16;
+    private static final int EXPIRY = 7 * 86400;
+    private static final int POLL_INTERVAL = 1000;
+    private static final int MAX_POLL_INTERVAL = 30000;
+
+    private CommandLine commandLine = null;
+    private List<CloudStorageAccount> accounts = new ArrayList<CloudStorageAccount>();
+
+    private void parseArgs(String[] args) {
+        // create the command line parser
+        CommandLineParser parser = new DefaultParser();
+
+        // create the Options
+        Options options = new Options();
+        options.addOption("c", true, "The connection string");
+        options.addOption("e", true, "The seconds to expired of the source signature while copying from another account. (default=" + EXPIRY + "s)");
+        options.addOption("f", false, "Force copy even the target blob exists");
+        options.addOption("h", false, "The help information");
+        options.addOption("p", true, "The number of copies pending at a time. (default=" + COPIES + ")");
+        options.addOption("v", false, "The version");
+        options.addOption(Option.builder()
+                .longOpt("prefix")
+                .desc("copy all the blobs with the source prefix to the target prefix")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("postfix")
+                .argName("string")
+                .hasArg(true)
+                .desc("keep only the blob which has the path with the specified postfix. The postfix only be used while prefix is used.")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("poll-interval")
+                .argName("millis")
+                .hasArg(true)
+                .desc("The interval to poll the pending copies. It backs off up to 30s while no copy completes. (default=" + POLL_INTERVAL + "ms)")
+                .build());
+
+        try {
+            // parse the command line arguments
+            commandLine = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println("Unexpected exception:" + e.getMessage());
+            Exit.exit(1);
+        }
+
+        if (commandLine.hasOption('v')) {
+            printVersion();
+        } else if (commandLine.hasOption('h')) {
+            printHelp(options);
+        } else if (commandLine.getArgs().length != 2) {
+            printHelp(options);
+        }
+    }
+
+    private void printVersion() {
+        System.out.println("azurecp version " + Consts.VERSION);
+        Exit.exit(0);
+    }
+
+    private void printHelp(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        String cmdLineSyntax =
+                "azurecp [-c <connection-string>] <source-blob-uri> <target-blob-uri>";
+        formatter.printHelp(cmdLineSyntax, options);
+        Exit.exit(0);
+    }
+
+    public AzureCopy(String[] args) {
+        parseArgs(args);
+
+        accounts = AccountUtils.readAccounts(commandLine.getOptionValue('c', ""));
+
+        URI sourceUri = URI.create(decode(commandLine.getArgs()[0]));
+        URI targetUri = URI.create(decode(commandLine.getArgs()[1]));
+        CloudStorageAccount sourceAccount = AccountUtils.getAccountFromUri(accounts, sourceUri);
+        CloudStorageAccount targetAccount = AccountUtils.getAccountFromUri(accounts, targetUri);
+
+        int copies = Integer.parseInt(commandLine.getOptionValue("p", "" + COPIES));
+        long pollInterval = Long.parseLong(commandLine.getOptionValue("poll-interval", "" + POLL_INTERVAL));
+
+        int failed = 0;
+        try (BlobCopier copier = new BlobCopier(copies, pollInterval, Math.max(pollInterval, MAX_POLL_INTERVAL))) {
+            copier.setForce(commandLine.hasOption("f"));
+
+            if (commandLine.hasOption("prefix")) {
+                copyPrefix(copier, sourceAccount, sourceUri, targetAccount, targetUri);
+            } else {
+                copyOne(copier, sourceAccount, sourceUri, targetAccount, targetUri);
+            }
+            failed = copier.finish();
+        } catch (StorageException e) {
+            if (BlobResolver.isContainerNotFound(e)) {
+                System.err.println("container not exists");
+                Exit.exit(-1);
+            }
+            e.printStackTrace();
+            Exit.exit(-1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Exit.exit(-1);
+        }
+
+        if (failed > 0) {
+            Exit.exit(-1);
+        }
+    }
+
+    private static String decode(String path) {
+        try {
+            return URLDecoder.decode(path, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            // don't use the decoded path. Use the original one
+            return path;
+        }
+    }
+
+    private void copyOne(BlobCopier copier, CloudStorageAccount sourceAccount, URI sourceUri,
+                         CloudStorageAccount targetAccount, URI targetUri)
+            throws URISyntaxException, StorageException, InvalidKeyException, InterruptedException {
+        CloudBlob source = BlobResolver.resolve(sourceAccount, sourceUri);
+        if (source == null) {
+            System.err.println("Can't find blob at " + sourceUri);
+            Exit.exit(-1);
+        }
+
+        CloudBlobContainer targetContainer = BlobResolver.getContainer(targetAccount, targetUri);
+        copy(copier, source, sourceAccount != targetAccount, targetContainer, BlobResolver.getBlobName(targetUri));
+    }
+
+    private void copyPrefix(BlobCopier copier, CloudStorageAccount sourceAccount, URI sourceUri,
+                            CloudStorageAccount targetAccount, URI targetUri)
+            throws URISyntaxException, StorageException, InvalidKeyException, InterruptedException, IOException {
+        CloudBlobContainer sourceContainer = BlobResolver.getContainer(sourceAccount, sourceUri);
+        CloudBlobContainer targetContainer = BlobResolver.getContainer(targetAccount, targetUri);
+        String sourcePrefix = BlobResolver.getBlobName(sourceUri);
+        String targetPrefix = BlobResolver.getBlobName(targetUri);
+
+        try (BlobLister lister = new BlobLister(sourceContainer, sourcePrefix, commandLine.getOptionValue("postfix"))) {
+            CloudBlob source;
+            while ((source = lister.next()) != null) {
+                String name = targetPrefix + source.getName().substring(sourcePrefix.length());
+                copy(copier, source, sourceAccount != targetAccount, targetContainer, name);
+            }
+        }
+    }
+
+    private void copy(BlobCopier copier, CloudBlob source, boolean signed, CloudBlobContainer targetContainer, String name)
+            throws URISyntaxException, StorageException, InvalidKeyException, InterruptedException {
+        // the service of another account can only read the source with a signature
+        int expiry = Integer.parseInt(commandLine.getOptionValue("e", "" + EXPIRY));
+        URI sourceUri = signed ? SasUtils.getReadUri(source, expiry) : source.getUri();
+
+        CloudBlob target;
+        if (source instanceof CloudPageBlob) {
+            target = targetContainer.getPageBlobReference(name);
+        } else if (source instanceof CloudAppendBlob) {
+            target = targetContainer.getAppendBlobReference(name);
+        } else {
+            target = targetContainer.getBlockBlobReference(name);
+        }
+        copier.copy(source, sourceUri, target);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new AzureCopy(args);
+    }
+}
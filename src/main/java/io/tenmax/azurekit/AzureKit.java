@@ -0,0 +1,183 @@
+package io.tenmax.azurekit;
+
+import org.apache.commons.cli.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Runs many commands in one process, one command line per line of stdin.
+ * The commands share the parsed accounts, the storage clients and the pooled
+ * http connections of the process, so only the first command pays for the
+ * startup.
+ */
+public class AzureKit {
+    private static final Map<String, Consumer<String[]>> COMMANDS = new HashMap<>();
+
+    static {
+        COMMANDS.put("azurecat", AzureCat::new);
+        COMMANDS.put("azuresink", AzureSink::new);
+        COMMANDS.put("azuresas", AzureSAS::new);
+        COMMANDS.put("azurecp", AzureCopy::new);
+        COMMANDS.put("azuretbl2json", args -> new AzureTableExporter(args, "azuretbl2json", "json"));
+        COMMANDS.put("azuretbl2csv", args -> new AzureTableExporter(args, "azuretbl2csv", "csv"));
+    }
+
+    private CommandLine commandLine = null;
+
+    private void parseArgs(String[] args) {
+        // create the command line parser
+        CommandLineParser parser = new DefaultParser();
+
+        // create the Options
+        Options options = new Options();
+        options.addOption("d", true, "The line printed after the output of every command");
+        options.addOption("h", false, "The help information");
+        options.addOption("v", false, "The version");
+
+        try {
+            // parse the command line arguments
+            commandLine = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println("Unexpected exception:" + e.getMessage());
+            System.exit(1);
+        }
+
+        if (commandLine.hasOption('v')) {
+            printVersion();
+        } else if (commandLine.hasOption('h')) {
+            printHelp(options);
+        } else if (commandLine.getArgs().length != 0) {
+            printHelp(options);
+        }
+    }
+
+    private void printVersion() {
+        System.out.println("azurekit version " + Consts.VERSION);
+        System.exit(0);
+    }
+
+    private void printHelp(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        String cmdLineSyntax =
+                "azurekit [-d <delimiter>] < commands";
+        formatter.printHelp(cmdLineSyntax, options);
+        System.exit(0);
+    }
+
+    public AzureKit(String[] args) {
+        parseArgs(args);
+
+        String delimiter = commandLine.getOptionValue("d");
+
+        // stdin carries the commands, so the commands can't read it
+        InputStream commands = System.in;
+        System.setIn(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("stdin is used for the commands of azurekit");
+            }
+        });
+        Exit.setBatch(true);
+
+        int failures = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(commands, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                List<String> words = split(line);
+                if (words.isEmpty() || words.get(0).startsWith("#")) {
+                    continue;
+                }
+
+                if (run(words) != 0) {
+                    failures++;
+                }
+
+                System.out.flush();
+                if (delimiter != null) {
+                    System.out.println(delimiter);
+                    System.out.flush();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+
+        System.exit(failures == 0 ? 0 : -1);
+    }
+
+    private int run(List<String> words) {
+        Consumer<String[]> command = COMMANDS.get(words.get(0));
+        if (command == null) {
+            System.err.println("Unknown command " + words.get(0));
+            return 1;
+        }
+
+        int status = 0;
+        try {
+            command.accept(words.subList(1, words.size()).toArray(new String[0]));
+        } catch (Exit.ExitError e) {
+            status = e.getStatus();
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = -1;
+        }
+
+        if (status != 0) {
+            System.err.println(String.join(" ", words) + " exited with " + status);
+        }
+        return status;
+    }
+
+    /**
+     * Split a command line into words at spaces outside of single or double quotes.
+     */
+    static List<String> split(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = null;
+        char quote = 0;
+
+        for (char c : line.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    word.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                if (word == null) {
+                    word = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (word != null) {
+                    words.add(word.toString());
+                    word = null;
+                }
+            } else {
+                if (word == null) {
+                    word = new StringBuilder();
+                }
+                word.append(c);
+            }
+        }
+
+        if (word != null) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new AzureKit(args);
+    }
+}
@@ -4,22 +4,44 @@ import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.*;
 import io.tenmax.azurekit.azure.AccountUtils;
+import io.tenmax.azurekit.azure.BlobResolver;
+import io.tenmax.azurekit.azure.SasSigner;
+import io.tenmax.azurekit.azure.SasUtils;
+import io.tenmax.azurekit.blob.BlobLister;
+import io.tenmax.azurekit.io.BrokenPipeException;
+import io.tenmax.azurekit.io.ChannelOutputStream;
 import org.apache.commons.cli.*;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.*;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class AzureSAS {
     private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int CHECKS = 8;
+
+    private static class Check {
+        final URI blobUri;
+        final Future<Boolean> found;
+
+        Check(URI blobUri, Future<Boolean> found) {
+            this.blobUri = blobUri;
+            this.found = found;
+        }
+    }
 
     private CommandLine commandLine = null;
+    private Date expiry;
+    private Map<CloudStorageAccount, SasSigner> signers = new HashMap<>();
     private List<CloudStorageAccount> accounts = new ArrayList<CloudStorageAccount>();
 
     private void parseArgs(String[] args) {
@@ -31,36 +53,49 @@ public class AzureSAS {
         options.addOption("c", true, "The connection string");
         options.addOption("e", true, "The seconds to expired. (default=86400s)");
         options.addOption("h", false, "The help information");
+        options.addOption("p", true, "The number of blobs checked in parallel with --batch. (default=" + CHECKS + ")");
         options.addOption("v", false, "The version");
+        options.addOption(Option.builder()
+                .longOpt("batch")
+                .desc("Read the blob uris from stdin, one per line, and print a signed url for each")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("prefix")
+                .desc("Print a signed url for all the blobs with the prefix")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("no-check")
+                .desc("Sign the urls without checking the blobs exist")
+                .build());
 
         try {
             // parse the command line arguments
             commandLine = parser.parse(options, args);
         } catch (ParseException e) {
             System.out.println("Unexpected exception:" + e.getMessage());
-            System.exit(1);
+            Exit.exit(1);
         }
 
         if (commandLine.hasOption('v')) {
             printVersion();
         } else if (commandLine.hasOption('h')) {
             printHelp(options);
-        } else if (commandLine.getArgs().length != 1) {
+        } else if (commandLine.getArgs().length != (commandLine.hasOption("batch") ? 0 : 1)) {
             printHelp(options);
         }
     }
 
     private void printVersion() {
         System.out.println("azuresink version " + Consts.VERSION);
-        System.exit(0);
+        Exit.exit(0);
     }
 
     private void printHelp(Options options) {
         HelpFormatter formatter = new HelpFormatter();
         String cmdLineSyntax =
-                "azuresas [-c <connection-string>] -e <seconds> <blob-uri>";
+                "azuresas [-c <connection-string>] -e <seconds> [--batch | <blob-uri>]";
         formatter.printHelp(cmdLineSyntax, options);
-        System.exit(0);
+        Exit.exit(0);
     }
 
     public void readAccountsFromArgs() {
@@ -74,7 +109,7 @@ public class AzureSAS {
             accounts.add(account);
         } catch (Exception e) {
             e.printStackTrace();
-            System.exit(0);
+            Exit.exit(0);
         }
     }
 
@@ -83,63 +118,160 @@ public class AzureSAS {
 
         accounts = AccountUtils.readAccounts(commandLine.getOptionValue('c', ""));
 
-        String path = commandLine.getArgs()[0];
-        try {
-            path = URLDecoder.decode(path, "utf-8");
-        } catch (UnsupportedEncodingException e) {
-            // don't use the decoded path. Use the original one
+        int duration = 86400;
+        if (commandLine.hasOption("e")) {
+            duration = Integer.parseInt(commandLine.getOptionValue("e"));
         }
+        expiry = Date.from(Instant.now().plusSeconds(duration));
 
-        URI blobUri = URI.create(path);
+        if (commandLine.hasOption("batch")) {
+            printBatch();
+            return;
+        }
+
+        URI blobUri = URI.create(decode(commandLine.getArgs()[0]));
         CloudStorageAccount account = AccountUtils.getAccountFromUri(accounts, blobUri);
 
-        int duration = 86400;
-        if (commandLine.hasOption("e")) {
-            duration = Integer.parseInt(commandLine.getOptionValue("e"));
+        if (commandLine.hasOption("prefix")) {
+            printPrefix(account, blobUri);
+        } else if (commandLine.hasOption("no-check")) {
+            try {
+                System.out.println(getSigner(account).getReadUri(blobUri));
+            } catch (InvalidKeyException e) {
+                e.printStackTrace();
+            }
+        } else {
+            printSasUrl(account, blobUri, duration);
         }
+    }
 
-        printSasUrl(account, blobUri, duration);
+    private static String decode(String path) {
+        try {
+            return URLDecoder.decode(path, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            // don't use the decoded path. Use the original one
+            return path;
+        }
     }
 
-    private void printSasUrl(CloudStorageAccount account, URI blobUri, int seconds) {
+    private SasSigner getSigner(CloudStorageAccount account) throws InvalidKeyException {
+        SasSigner signer = signers.get(account);
+        if (signer == null) {
+            signer = new SasSigner(account, expiry);
+            signers.put(account, signer);
+        }
+        return signer;
+    }
 
-        try {
-            String container = blobUri.getPath().split("/")[1];
-            String path = blobUri.getPath().substring(2 + container.length());
+    private void printPrefix(CloudStorageAccount account, URI prefixUri) {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(ChannelOutputStream.stdout(), StandardCharsets.UTF_8));
+             BlobLister lister = new BlobLister(BlobResolver.getContainer(account, prefixUri),
+                     BlobResolver.getBlobName(prefixUri), null)) {
+            SasSigner signer = getSigner(account);
 
-            CloudBlobClient blobClient = account.createCloudBlobClient();
-            CloudBlobContainer blobContainer = blobClient.getContainerReference(container);
-            if (!blobContainer.exists()) {
-                System.err.println("container not exists");
-                return;
+            CloudBlob blob;
+            while ((blob = lister.next()) != null) {
+                out.write(signer.getReadUri(blob.getUri()) + "\n");
             }
+        } catch (BrokenPipeException e) {
+            // the reader is gone
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Sign the uris read from stdin. The blobs are checked in parallel on a pool, and
+     * the urls are printed in the input order and flushed whenever the input stalls.
+     * A missing blob is reported and makes the command fail once the input is done.
+     */
+    private void printBatch() {
+        int threads = Integer.parseInt(commandLine.getOptionValue("p", "" + CHECKS));
+        boolean check = !commandLine.hasOption("no-check");
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "blob-checker");
+            t.setDaemon(true);
+            return t;
+        });
 
-            Iterable<ListBlobItem> blobs = blobContainer.listBlobs(path);
+        Deque<Check> window = new ArrayDeque<>();
+        int missing = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(ChannelOutputStream.stdout(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                URI blobUri = URI.create(decode(line));
+                CloudStorageAccount account = AccountUtils.getAccountFromUri(accounts, blobUri);
+                if (check) {
+                    window.add(new Check(blobUri, executor.submit(() -> BlobResolver.resolve(account, blobUri) != null)));
+                } else {
+                    window.add(new Check(blobUri, CompletableFuture.completedFuture(true)));
+                }
 
-            for (ListBlobItem blobItem : blobs) {
-                if (blobItem instanceof CloudBlob) {
-                    CloudBlob blob = (CloudBlob) blobItem;
-                    if (blob.getUri().equals(blobUri)) {
-                        printSasUrlByBlob(blob, seconds);
+                while (window.size() > threads * 4 || (!window.isEmpty() && window.peek().found.isDone())) {
+                    if (!printSigned(window.poll(), out)) {
+                        missing++;
                     }
                 }
+                if (window.isEmpty() && !in.ready()) {
+                    out.flush();
+                }
+            }
+
+            while (!window.isEmpty()) {
+                if (!printSigned(window.poll(), out)) {
+                    missing++;
+                }
             }
+        } catch (BrokenPipeException e) {
+            // the reader is gone
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
 
+        if (missing > 0) {
+            Exit.exit(-1);
+        }
+    }
 
+    /**
+     * @return false if the blob doesn't exist
+     */
+    private boolean printSigned(Check check, Writer out)
+            throws IOException, InterruptedException, ExecutionException, InvalidKeyException {
+        if (!check.found.get()) {
+            System.err.println("Can't find blob at " + check.blobUri);
+            return false;
+        }
+        CloudStorageAccount account = AccountUtils.getAccountFromUri(accounts, check.blobUri);
+        out.write(getSigner(account).getReadUri(check.blobUri) + "\n");
+        return true;
+    }
+
+    private void printSasUrl(CloudStorageAccount account, URI blobUri, int seconds) {
+
+        try {
+            CloudBlob blob = BlobResolver.resolve(account, blobUri);
+            if (blob == null) {
+                System.err.println("Can't find blob at " + blobUri);
+                return;
+            }
+
+            printSasUrlByBlob(blob, seconds);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     private void printSasUrlByBlob(CloudBlob blob, int seconds) throws StorageException, IOException, InvalidKeyException {
-        SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
-        policy.setPermissionsFromString("r");
-        policy.setSharedAccessExpiryTime(Date.from(Instant.now().plusSeconds(seconds)));
-
-        String s = blob.generateSharedAccessSignature(policy, null);
-        URI srcUri = URI.create(blob.getUri() + "?" + s);
-        System.out.println(srcUri);
+        System.out.println(SasUtils.getReadUri(blob, seconds));
     }
 
     public static void main(String[] args) throws Exception {
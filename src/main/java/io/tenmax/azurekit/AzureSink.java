@@ -3,18 +3,35 @@ package io.tenmax.azurekit;
 import com.microsoft.azure.storage.*;
 import com.microsoft.azure.storage.blob.*;
 import io.tenmax.azurekit.azure.AccountUtils;
+import io.tenmax.azurekit.azure.BlobResolver;
+import io.tenmax.azurekit.blob.BlockUploader;
+import io.tenmax.azurekit.blob.BulkUploader;
+import io.tenmax.azurekit.blob.StreamingUploader;
+import io.tenmax.azurekit.io.BufferPool;
 import org.apache.commons.cli.*;
 
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 
 public class AzureSink {
-    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int WORKERS = 4;
+    private static final int BLOCK_SIZE = 4;
+    private static final int FILE_WORKERS = 8;
+    private static final int FLUSH_SIZE = 1024;
+    private static final int FLUSH_INTERVAL = 2000;
+    private static final int MAX_MEMORY = (int) (BufferPool.DEFAULT_MAX_BYTES / Constants.MB);
 
     private CommandLine commandLine = null;
     private List<CloudStorageAccount> accounts = new ArrayList<CloudStorageAccount>();
@@ -28,14 +45,83 @@ public class AzureSink {
         options.addOption( "c", true, "The connection string" );
         options.addOption( "f", false, "Force upload even the blob exists" );
         options.addOption( "h", false, "The help information" );
+        options.addOption( "p", true, "The number of blocks uploaded in parallel. (default=" + WORKERS + ")" );
         options.addOption( "v", false, "The version" );
+        options.addOption( "z", false, "Compress the input as gzip on all the workers" );
+        options.addOption(Option.builder()
+                .longOpt("block-size")
+                .argName("MBytes")
+                .hasArg(true)
+                .desc("The size of each uploaded block. (default=" + BLOCK_SIZE + "MB, max=4MB)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("files")
+                .argName("count")
+                .hasArg(true)
+                .desc("The number of files uploaded in parallel with --dir or --list. (default=" + FILE_WORKERS + ")")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("stream")
+                .desc("Append the input to an append blob while it is read, so the blob grows within seconds. Flushes end at a line boundary")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("flush-size")
+                .argName("KBytes")
+                .hasArg(true)
+                .desc("Flush the stream when the unflushed data reaches the size. (default=" + FLUSH_SIZE + "KB)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("flush-interval")
+                .argName("millis")
+                .hasArg(true)
+                .desc("Flush the stream when the unflushed data waited for the interval. (default=" + FLUSH_INTERVAL + "ms)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("cdc")
+                .desc("Cut the blocks at content-defined boundaries in delta mode, so inserted data only changes the blocks around it")
+                .build());
+
+        OptionGroup resumeGroup = new OptionGroup();
+        resumeGroup.addOption(Option.builder()
+                .longOpt("delta")
+                .desc("Name the blocks by their content and only upload the blocks the blob doesn't have yet. A failed upload is resumed by running it again")
+                .build());
+        resumeGroup.addOption(Option.builder()
+                .longOpt("resume")
+                .argName("file")
+                .hasArg(true)
+                .desc("Record the uploaded blocks in the checkpoint file, and skip the blocks recorded by a failed run")
+                .build());
+        options.addOptionGroup(resumeGroup);
+
+        OptionGroup inputGroup = new OptionGroup();
+        inputGroup.addOption(new Option("i", true, "The input file. (default=stdin)"));
+        inputGroup.addOption(Option.builder()
+                .longOpt("dir")
+                .argName("dir")
+                .hasArg(true)
+                .desc("Upload all the files in the directory under the blob-uri prefix")
+                .build());
+        inputGroup.addOption(Option.builder()
+                .longOpt("list")
+                .argName("file")
+                .hasArg(true)
+                .desc("Upload the files listed in the file, one path per line, under the blob-uri prefix. Use '-' for stdin")
+                .build());
+        options.addOptionGroup(inputGroup);
+        options.addOption(Option.builder()
+                .longOpt("max-memory")
+                .argName("MBytes")
+                .hasArg(true)
+                .desc("The maximum size of the pooled range, copy and block buffers. (default=" + MAX_MEMORY + "MB)")
+                .build());
 
         try {
             // parse the command line arguments
             commandLine = parser.parse(options, args);
         } catch (ParseException e) {
             System.out.println( "Unexpected exception:" + e.getMessage() );
-            System.exit(1);
+            Exit.exit(1);
         }
 
         if (commandLine.hasOption('v')) {
@@ -44,20 +130,38 @@ public class AzureSink {
             printHelp(options);
         } else if (commandLine.getArgs().length != 1) {
             printHelp(options);
+        } else if ((commandLine.hasOption("dir") || commandLine.hasOption("list")) &&
+                (commandLine.hasOption("z") || commandLine.hasOption("delta") || commandLine.hasOption("resume"))) {
+            System.err.println("--dir and --list can't be used with -z, --delta or --resume");
+            Exit.exit(1);
+        } else if (commandLine.hasOption("stream") &&
+                (commandLine.hasOption("z") || commandLine.hasOption("delta") || commandLine.hasOption("resume") ||
+                        commandLine.hasOption("dir") || commandLine.hasOption("list"))) {
+            System.err.println("--stream can't be used with -z, --delta, --resume, --dir or --list");
+            Exit.exit(1);
+        } else if (commandLine.hasOption("cdc") && !commandLine.hasOption("delta")) {
+            System.err.println("--cdc can only be used with --delta");
+            Exit.exit(1);
+        } else {
+            int blockSize = Integer.parseInt(commandLine.getOptionValue("block-size", "" + BLOCK_SIZE));
+            if (blockSize < 1 || blockSize > BlockUploader.MAX_BLOCK_SIZE / Constants.MB) {
+                System.err.println("--block-size must be between 1 and " + BlockUploader.MAX_BLOCK_SIZE / Constants.MB);
+                Exit.exit(1);
+            }
         }
     }
 
     private void printVersion() {
         System.out.println("azuresink version " + Consts.VERSION);
-        System.exit(0);
+        Exit.exit(0);
     }
 
     private void printHelp(Options options) {
         HelpFormatter formatter = new HelpFormatter();
         String cmdLineSyntax =
-                "azuresink [-c <connection-string>] <blob-uri>";
+                "azuresink [-c <connection-string>] [--dir <dir> | --list <file>] <blob-uri>";
         formatter.printHelp(cmdLineSyntax, options);
-        System.exit(0);
+        Exit.exit(0);
     }
 
 
@@ -65,6 +169,8 @@ public class AzureSink {
         parseArgs(args);
 
         accounts = AccountUtils.readAccounts(commandLine.getOptionValue('c', ""));
+        BufferPool.setMaxBytes((long) Constants.MB *
+                Integer.parseInt(commandLine.getOptionValue("max-memory", "" + MAX_MEMORY)));
 
         String path = commandLine.getArgs()[0];
         try {
@@ -76,59 +182,169 @@ public class AzureSink {
         URI blobUri = URI.create(path);
         CloudStorageAccount account = AccountUtils.getAccountFromUri(accounts, blobUri);
 
-        upload(account, blobUri);
+        if (commandLine.hasOption("dir") || commandLine.hasOption("list")) {
+            uploadFiles(account, blobUri);
+        } else {
+            upload(account, blobUri);
+        }
     }
 
-    private void upload(CloudStorageAccount account, URI blobUri) {
+    private void uploadFiles(CloudStorageAccount account, URI prefixUri) {
+        int workers = Integer.parseInt(commandLine.getOptionValue("p", "" + WORKERS));
+        int blockSize = Constants.MB * Integer.parseInt(commandLine.getOptionValue("block-size", "" + BLOCK_SIZE));
+        int fileWorkers = Integer.parseInt(commandLine.getOptionValue("files", "" + FILE_WORKERS));
 
+        int failed = 0;
         try {
-            String container = blobUri.getPath().split("/")[1];
-            String path = blobUri.getPath().substring(2 + container.length());
+            CloudBlobContainer blobContainer = BlobResolver.getContainer(account, prefixUri);
+            String prefix = BlobResolver.getBlobName(prefixUri);
+            if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+                prefix += "/";
+            }
+
+            try (BulkUploader uploader = new BulkUploader(blobContainer, prefix, fileWorkers, workers, blockSize)) {
+                uploader.setForce(commandLine.hasOption("f"));
+                uploader.listRemote();
 
-            CloudBlobClient blobClient = account.createCloudBlobClient();
-            CloudBlobContainer blobContainer = blobClient.getContainerReference(container);
-            if(!blobContainer.exists()) {
+                if (commandLine.hasOption("dir")) {
+                    addDirectory(uploader, Paths.get(commandLine.getOptionValue("dir")));
+                } else {
+                    addList(uploader, commandLine.getOptionValue("list"));
+                }
+                failed = uploader.finish();
+            }
+        } catch (IOException e) {
+            if (e.getCause() instanceof StorageException &&
+                    BlobResolver.isContainerNotFound((StorageException) e.getCause())) {
                 System.err.println("container not exists");
-                return;
+                Exit.exit(-1);
             }
+            e.printStackTrace();
+            Exit.exit(-1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Exit.exit(-1);
+        }
 
+        if (failed > 0) {
+            Exit.exit(-1);
+        }
+    }
 
-            Iterable<ListBlobItem> blobs = blobContainer.listBlobs(path);
+    private void addDirectory(BulkUploader uploader, Path root) throws IOException, InterruptedException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            Iterator<Path> files = paths.filter(Files::isRegularFile).iterator();
+            while (files.hasNext()) {
+                Path file = files.next();
+                uploader.add(file.toFile(), root.relativize(file).toString().replace(File.separatorChar, '/'));
+            }
+        }
+    }
 
-            for (ListBlobItem blobItem : blobs) {
-                if (blobItem instanceof CloudBlob) {
-                    CloudBlob blob = (CloudBlob) blobItem;
-                    if (blob.getUri().equals(blobUri)) {
-                        if (!commandLine.hasOption("f")) {
-                            System.err.println("blob exists. Use -f to force upload.");
-                            System.exit(-1);
-                        }
+    private void addList(BulkUploader uploader, String list) throws IOException, InterruptedException {
+        InputStream in = "-".equals(list) ? System.in : new FileInputStream(list);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
 
-                        blob.deleteIfExists();
-                    }
+                // the blob name is the listed path, without the leading './' or '/'
+                String name = line.replace(File.separatorChar, '/');
+                while (name.startsWith("./") || name.startsWith("/")) {
+                    name = name.substring(name.indexOf('/') + 1);
                 }
+                uploader.add(new File(line), name);
+            }
+        }
+    }
+
+    private void upload(CloudStorageAccount account, URI blobUri) {
+
+        try {
+            CloudBlobContainer blobContainer = BlobResolver.getContainer(account, blobUri);
+            String path = BlobResolver.getBlobName(blobUri);
+
+            // only create the blob if nobody else did, or only overwrite the version we have seen
+            AccessCondition condition = AccessCondition.generateIfNoneMatchCondition("*");
+
+            CloudBlob existing = BlobResolver.resolve(account, blobUri);
+            if (existing != null) {
+                if (!commandLine.hasOption("f")) {
+                    System.err.println("blob exists. Use -f to force upload.");
+                    Exit.exit(-1);
+                }
+
+                condition = AccessCondition.generateIfMatchCondition(existing.getProperties().getEtag());
+            }
+
+            if (commandLine.hasOption("stream")) {
+                // creating the append blob replaces a blob of any type
+                streamBlob(blobContainer.getAppendBlobReference(path), condition);
+                return;
+            }
+
+            if (existing != null && !(existing instanceof CloudBlockBlob)) {
+                existing.delete(DeleteSnapshotsOption.NONE, condition, null, null);
+                condition = AccessCondition.generateIfNoneMatchCondition("*");
             }
 
             CloudBlockBlob blob = blobContainer.getBlockBlobReference(path);
-            uploadBlob(System.in, blob);
+            uploadBlob(blob, condition);
+        } catch (StorageException e) {
+            if (BlobResolver.isContainerNotFound(e)) {
+                System.err.println("container not exists");
+                return;
+            }
+            e.printStackTrace();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private void uploadBlob(InputStream  in, CloudBlockBlob blob) throws StorageException, IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int read;
+    private void uploadBlob(CloudBlockBlob blob, AccessCondition condition)
+            throws StorageException, IOException, InterruptedException {
+        int workers = Integer.parseInt(commandLine.getOptionValue("p", "" + WORKERS));
+        int blockSize = Constants.MB * Integer.parseInt(commandLine.getOptionValue("block-size", "" + BLOCK_SIZE));
+
+        try (BlockUploader uploader = new BlockUploader(blob, workers, blockSize)) {
+            uploader.setGzip(commandLine.hasOption("z"));
+            if (commandLine.hasOption("delta") && !uploader.setDelta(commandLine.hasOption("cdc"))) {
+                // blocks named by position can't be mixed with blocks named by content
+                blob.delete(DeleteSnapshotsOption.NONE, condition, null, null);
+                condition = AccessCondition.generateIfNoneMatchCondition("*");
+                uploader.setDelta(commandLine.hasOption("cdc"));
+            }
+            if (commandLine.hasOption("resume")) {
+                uploader.setCheckpoint(new File(commandLine.getOptionValue("resume")));
+            }
+            if (commandLine.hasOption("i")) {
+                try (FileChannel channel = FileChannel.open(Paths.get(commandLine.getOptionValue("i")))) {
+                    uploader.upload(channel);
+                }
+            } else {
+                uploader.upload(System.in);
+            }
+
+            uploader.commit(condition);
+        }
+    }
 
-        BlobOutputStream out = blob.openOutputStream();
+    private void streamBlob(CloudAppendBlob blob, AccessCondition condition)
+            throws StorageException, IOException, InterruptedException {
+        int blockSize = Constants.MB * Integer.parseInt(commandLine.getOptionValue("block-size", "" + BLOCK_SIZE));
+        int flushSize = Constants.KB * Integer.parseInt(commandLine.getOptionValue("flush-size", "" + FLUSH_SIZE));
+        long flushInterval = Long.parseLong(commandLine.getOptionValue("flush-interval", "" + FLUSH_INTERVAL));
 
-        try {
-            while ((read = in.read(buffer)) > 0) {
-                out.write(buffer, 0, read);
+        StreamingUploader uploader = new StreamingUploader(blob, blockSize, flushSize, flushInterval);
+        if (commandLine.hasOption("i")) {
+            try (InputStream in = new FileInputStream(commandLine.getOptionValue("i"))) {
+                uploader.upload(in, condition);
             }
-        } finally {
-            in.close();
-            out.close();
+        } else {
+            uploader.upload(System.in, condition);
         }
     }
 
@@ -1,20 +1,50 @@
 package io.tenmax.azurekit;
 
+import com.microsoft.azure.storage.AccessCondition;
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.Constants;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.table.CloudTable;
 import io.tenmax.azurekit.azure.AccountUtils;
+import io.tenmax.azurekit.azure.BlobResolver;
+import io.tenmax.azurekit.blob.BlockUploader;
+import io.tenmax.azurekit.io.BrokenPipeException;
+import io.tenmax.azurekit.io.ChannelOutputStream;
+import io.tenmax.azurekit.table.ExportCheckpoint;
+import io.tenmax.azurekit.table.ParallelExport;
+import io.tenmax.azurekit.table.PartitionRange;
+import io.tenmax.azurekit.table.Watermark;
 import io.tenmax.azurekit.table.format.CsvFormat;
 import io.tenmax.azurekit.table.format.Format;
 import io.tenmax.azurekit.table.format.JsonFormat;
 import org.apache.commons.cli.*;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.List;
 
 public class AzureTableExporter {
+    private static final int RANGES_PER_WORKER = 4;
+    private static final int UPLOAD_WORKERS = 4;
+    private static final int BLOCK_SIZE = 4;
+    private static final int OVERLAP = 300;
+
     private CommandLine commandLine = null;
     private String appName;
+    private AccessCondition blobCondition = null;
+    private Watermark watermark = null;
 
     private void parseArgs(String[] args) {
         // create the command line parser
@@ -27,13 +57,78 @@ public class AzureTableExporter {
         options.addOption("C", true, "The selected columns");
         options.addOption("t", true, "The take count. Default=1000");
         options.addOption("H", "no-header-row", false, "Do not output column names.");
+        options.addOption("p", true, "The number of partition key ranges exported at a time. (default=1)");
+        options.addOption(Option.builder()
+                .longOpt("split-points")
+                .argName("keys")
+                .hasArg(true)
+                .desc("The comma separated partition keys to split the table at. The split points are sampled from the partition keys by default.")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("shard")
+                .argName("i/n")
+                .hasArg(true)
+                .desc("Export only the i-th of n parts of the partition key ranges, counted from 0, so n machines can export a table together. Needs the same --split-points on every machine.")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("sample")
+                .argName("count")
+                .hasArg(true)
+                .desc("Print the given number of partition keys sampled from the table for --split-points, and exit")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("unordered")
+                .desc("Output the rows of the ranges as they come instead of in the order of the keys")
+                .build());
+        options.addOption("o", true, "The blob uri the table is exported to instead of the standard output");
+        options.addOption("z", false, "Compress the exported blob with gzip");
+        options.addOption(Option.builder()
+                .longOpt("overwrite")
+                .desc("Overwrite the exported blob if it exists and is a block blob")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("upload-workers")
+                .argName("count")
+                .hasArg(true)
+                .desc("The number of blocks of the exported blob uploaded in parallel. (default=" + UPLOAD_WORKERS + ")")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("block-size")
+                .argName("MB")
+                .hasArg(true)
+                .desc("The size of each uploaded block of the exported blob. (default=" + BLOCK_SIZE + "MB, max=4MB)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("formatters")
+                .argName("count")
+                .hasArg(true)
+                .desc("The number of threads formatting the pages of the table, which are output in order. (default=1)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("state")
+                .argName("file")
+                .hasArg(true)
+                .desc("Export only the entities changed since the last complete export with the state file, which keeps the latest Timestamp exported")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("overlap")
+                .argName("seconds")
+                .hasArg(true)
+                .desc("Export the entities from the seconds before the latest Timestamp of the last export too, which were written while it ran. (default=" + OVERLAP + "s)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("resume")
+                .argName("file")
+                .hasArg(true)
+                .desc("Record the exported pages in the checkpoint file, and continue after the pages recorded by a failed run. The output of the failed run is cut to the recorded pages if it is a file the output is appended to.")
+                .build());
 
         try {
             // parse the command line arguments
             commandLine = parser.parse(options, args);
         } catch (ParseException e) {
             System.out.println("Unexpected exception:" + e.getMessage());
-            System.exit(1);
+            Exit.exit(1);
         }
 
         if (commandLine.hasOption('v')) {
@@ -43,18 +138,58 @@ public class AzureTableExporter {
         } else if (commandLine.getArgs().length != 1) {
             printHelp(options);
         }
+
+        if (commandLine.hasOption("resume") &&
+                (commandLine.hasOption("p") || commandLine.hasOption("split-points") || commandLine.hasOption("shard"))) {
+            System.err.println("--resume can't be used with -p, --split-points or --shard");
+            Exit.exit(1);
+        }
+        if (commandLine.hasOption("resume") && commandLine.hasOption("o")) {
+            System.err.println("--resume can't be used with -o");
+            Exit.exit(1);
+        }
+        if (!commandLine.hasOption("o") && (commandLine.hasOption("z") || commandLine.hasOption("overwrite"))) {
+            System.err.println("-z and --overwrite can only be used with -o");
+            Exit.exit(1);
+        }
+        int blockSize = Integer.parseInt(commandLine.getOptionValue("block-size", "" + BLOCK_SIZE));
+        if (blockSize < 1 || blockSize > BlockUploader.MAX_BLOCK_SIZE / Constants.MB) {
+            System.err.println("--block-size must be between 1 and " + BlockUploader.MAX_BLOCK_SIZE / Constants.MB);
+            Exit.exit(1);
+        }
+        if (commandLine.hasOption("shard") && !commandLine.hasOption("split-points")) {
+            // split points sampled by each machine only match while the table doesn't change
+            System.err.println("--shard needs --split-points, e.g. from --sample");
+            Exit.exit(1);
+        }
+        if (commandLine.hasOption("sample") &&
+                (commandLine.hasOption("o") || commandLine.hasOption("resume") || commandLine.hasOption("state") ||
+                        commandLine.hasOption("split-points") || commandLine.hasOption("shard"))) {
+            System.err.println("--sample can't be used with -o, --resume, --state, --split-points or --shard");
+            Exit.exit(1);
+        }
+        if (commandLine.hasOption("overlap") && !commandLine.hasOption("state")) {
+            System.err.println("--overlap can only be used with --state");
+            Exit.exit(1);
+        }
+        if (commandLine.hasOption("formatters") &&
+                (commandLine.hasOption("p") || commandLine.hasOption("split-points") || commandLine.hasOption("shard"))) {
+            // every range is formatted by its own thread
+            System.err.println("--formatters can't be used with -p, --split-points or --shard");
+            Exit.exit(1);
+        }
     }
 
     private void printVersion() {
         System.out.println(appName + " version " + Consts.VERSION);
-        System.exit(0);
+        Exit.exit(0);
     }
 
     private void printHelp(Options options) {
         HelpFormatter formatter = new HelpFormatter();
         String cmdLineSyntax = appName + " [-c <connection-string>] <table-url>";
         formatter.printHelp(cmdLineSyntax, options);
-        System.exit(0);
+        Exit.exit(0);
     }
 
     public AzureTableExporter(String[] args, String appName, String fmt) {
@@ -71,17 +206,322 @@ public class AzureTableExporter {
             columns = commandLine.getOptionValue("C").split(",");
         }
 
-        String path = commandLine.getArgs()[0];
+        URI tableUri = URI.create(decode(commandLine.getArgs()[0]));
+        CloudStorageAccount account = AccountUtils.getAccountFromUri(accounts, tableUri);
+
+        if (commandLine.hasOption("sample")) {
+            printSplitPoints(account, tableUri, format,
+                    Integer.parseInt(commandLine.getOptionValue("sample")));
+            return;
+        }
+
+        if (commandLine.hasOption("state")) {
+            try {
+                watermark = new Watermark(new File(commandLine.getOptionValue("state")));
+            } catch (IOException e) {
+                e.printStackTrace();
+                Exit.exit(-1);
+            }
+            long overlap = 1000L * Integer.parseInt(commandLine.getOptionValue("overlap", "" + OVERLAP));
+            filterString = watermark.filter(filterString, overlap);
+        }
+
+        BlockUploader uploader = null;
+        OutputStream out;
+        if (commandLine.hasOption("o")) {
+            uploader = openBlob(accounts);
+            out = uploader.openOutputStream();
+        } else {
+            out = ChannelOutputStream.stdout();
+        }
+
+        int workers = Integer.parseInt(commandLine.getOptionValue("p", "1"));
+        boolean complete = false;
         try {
-            path = URLDecoder.decode(path, "utf-8");
+            if (workers > 1 || commandLine.hasOption("split-points") || commandLine.hasOption("shard")) {
+                complete = dumpRanges(account, tableUri, format, filterString, printHeader, columns, takeCount, workers, out);
+            } else {
+                complete = dump(account, tableUri, format, filterString, printHeader, columns, takeCount, out);
+            }
+
+            if (complete && uploader != null) {
+                commitBlob(uploader, out);
+            }
+        } finally {
+            try {
+                if (uploader != null) {
+                    uploader.close();
+                } else {
+                    out.close();
+                }
+            } catch (IOException e) {
+                // the reader has gone away
+                complete = false;
+            }
+        }
+
+        // only once the rows are out of the buffer
+        if (complete && watermark != null) {
+            saveWatermark();
+        }
+    }
+
+    /**
+     * Flush the rows already output before exiting, which would lose them in the buffer.
+     */
+    private static void flush(OutputStream out) {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // the reader has gone away
+        }
+    }
+
+    private static String decode(String path) {
+        try {
+            return URLDecoder.decode(path, "utf-8");
         } catch (UnsupportedEncodingException e) {
             // don't use the decoded path. Use the original one
+            return path;
         }
+    }
 
-        URI tableUri = URI.create(path);
-        CloudStorageAccount account = AccountUtils.getAccountFromUri(accounts, tableUri);
+    /**
+     * @return the uploader of the blob the table is exported to
+     */
+    private BlockUploader openBlob(List<CloudStorageAccount> accounts) {
+        URI blobUri = URI.create(decode(commandLine.getOptionValue("o")));
+        CloudStorageAccount account = AccountUtils.getAccountFromUri(accounts, blobUri);
+        int workers = Integer.parseInt(commandLine.getOptionValue("upload-workers", "" + UPLOAD_WORKERS));
+        int blockSize = Constants.MB * Integer.parseInt(commandLine.getOptionValue("block-size", "" + BLOCK_SIZE));
+
+        try {
+            CloudBlobContainer blobContainer = BlobResolver.getContainer(account, blobUri);
+
+            // only create the blob if nobody else did, or only overwrite the version we have seen
+            blobCondition = AccessCondition.generateIfNoneMatchCondition("*");
+
+            CloudBlob existing = BlobResolver.resolve(account, blobUri);
+            if (existing != null) {
+                if (!commandLine.hasOption("overwrite")) {
+                    System.err.println("blob exists. Use --overwrite to overwrite it.");
+                    Exit.exit(-1);
+                }
+
+                if (!(existing instanceof CloudBlockBlob)) {
+                    // the blocks can't be uploaded next to it, and deleting it up front would lose it if the export fails
+                    System.err.println("The blob is not a block blob. Delete it to export to it.");
+                    Exit.exit(-1);
+                }
+                blobCondition = AccessCondition.generateIfMatchCondition(existing.getProperties().getEtag());
+            }
+
+            BlockUploader uploader = new BlockUploader(
+                    blobContainer.getBlockBlobReference(BlobResolver.getBlobName(blobUri)), workers, blockSize);
+            uploader.setGzip(commandLine.hasOption("z"));
+            return uploader;
+        } catch (StorageException e) {
+            if (BlobResolver.isContainerNotFound(e)) {
+                System.err.println("container not exists");
+                Exit.exit(-1);
+            }
+            e.printStackTrace();
+            Exit.exit(-1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Exit.exit(-1);
+        }
+        return null;
+    }
 
-        format.dump(account, tableUri, filterString, printHeader, columns, takeCount, System.out);
+    private void saveWatermark() {
+        try {
+            watermark.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Exit.exit(-1);
+        }
+    }
+
+    private void commitBlob(BlockUploader uploader, OutputStream out) {
+        try {
+            // uploads the last block
+            out.close();
+            uploader.commit(blobCondition);
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED ||
+                    e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT) {
+                System.err.println("The blob is written by someone else.");
+                Exit.exit(-1);
+            }
+            e.printStackTrace();
+            Exit.exit(-1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Exit.exit(-1);
+        }
+    }
+
+    /**
+     * @return whether the whole table is output
+     */
+    private boolean dump(CloudStorageAccount account, URI tableUri, Format format, String filterString, boolean printHeader,
+                         String[] columns, int takeCount, OutputStream out) {
+        ExportCheckpoint checkpoint = null;
+        boolean failed = false;
+        try {
+            if (commandLine.hasOption("resume")) {
+                String parameters = appName + " " + tableUri + " " + filterString + " " +
+                        commandLine.getOptionValue("C", "") + " " + printHeader;
+                checkpoint = new ExportCheckpoint(new File(commandLine.getOptionValue("resume")), parameters);
+                if (checkpoint.getToken() != null) {
+                    System.err.println("resume after " + checkpoint.getRows() + " rows");
+                    cutOutput(checkpoint.getBytes());
+                }
+            }
+
+            format.setFormatters(Integer.parseInt(commandLine.getOptionValue("formatters", "1")));
+            format.setWatermark(watermark);
+            format.dump(account, tableUri, filterString, printHeader, columns, takeCount, out, checkpoint);
+
+            if (checkpoint != null) {
+                checkpoint.delete();
+            }
+            return true;
+        } catch (BrokenPipeException e) {
+            // the reader has gone away
+        } catch (Exception e) {
+            e.printStackTrace();
+            failed = true;
+        } finally {
+            if (checkpoint != null) {
+                try {
+                    checkpoint.close();
+                } catch (IOException e) {
+                    // nothing more is recorded
+                }
+            }
+            if (failed) {
+                flush(out);
+            }
+        }
+
+        if (failed) {
+            Exit.exit(-1);
+        }
+        return false;
+    }
+
+    /**
+     * Cut the rows a failed run output after its last recorded page, if the output is a file.
+     */
+    private static void cutOutput(long bytes) {
+        // the output of azurekit is shared with the other commands
+        FileChannel channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        try {
+            if (!Exit.isBatch() && channel.size() >= bytes) {
+                channel.truncate(bytes);
+                channel.position(bytes);
+                return;
+            }
+        } catch (IOException e) {
+            // not a file
+        }
+        System.err.println("The output is not the file of the failed run, append it to the first " + bytes +
+                " bytes of the output of the failed run");
+    }
+
+    /**
+     * @return whether all the ranges are output
+     */
+    private boolean dumpRanges(CloudStorageAccount account, URI tableUri, Format format, String filterString, boolean printHeader,
+                               String[] columns, int takeCount, int workers, OutputStream out) {
+        int shard = 0;
+        int shards = 1;
+        if (commandLine.hasOption("shard")) {
+            String[] parts = commandLine.getOptionValue("shard").split("/");
+            if (parts.length != 2) {
+                System.err.println("The shard should be like 0/4");
+                Exit.exit(1);
+            }
+            shard = Integer.parseInt(parts[0]);
+            shards = Integer.parseInt(parts[1]);
+            if (shard < 0 || shard >= shards) {
+                System.err.println("The shard should be between 0/" + shards + " and " + (shards - 1) + "/" + shards);
+                Exit.exit(1);
+            }
+        }
+
+        CloudTable table = getTable(account, tableUri);
+        if (table == null) {
+            return false;
+        }
+
+        boolean failed = false;
+        try (ParallelExport export = new ParallelExport(table, format, workers)) {
+            export.setFilter(filterString);
+            export.setColumns(columns);
+            export.setTakeCount(takeCount);
+            export.setOrdered(!commandLine.hasOption("unordered"));
+            export.setWatermark(watermark);
+
+            List<String> splitPoints;
+            if (commandLine.hasOption("split-points")) {
+                splitPoints = Arrays.asList(commandLine.getOptionValue("split-points").split(","));
+                splitPoints.sort(null);
+            } else {
+                splitPoints = export.sample(workers * RANGES_PER_WORKER);
+            }
+
+            List<PartitionRange> ranges = PartitionRange.shard(PartitionRange.split(splitPoints), shard, shards);
+            export.dump(ranges, printHeader, out);
+            return true;
+        } catch (BrokenPipeException e) {
+            // the reader has gone away
+        } catch (Exception e) {
+            e.printStackTrace();
+            failed = true;
+        } finally {
+            if (failed) {
+                flush(out);
+            }
+        }
+
+        if (failed) {
+            Exit.exit(-1);
+        }
+        return false;
+    }
+
+    /**
+     * Print the sampled split points, so the machines of a sharded export split the table at the same keys.
+     */
+    private void printSplitPoints(CloudStorageAccount account, URI tableUri, Format format, int count) {
+        CloudTable table = getTable(account, tableUri);
+        if (table == null) {
+            return;
+        }
+
+        int workers = Integer.parseInt(commandLine.getOptionValue("p", "1"));
+        try (ParallelExport export = new ParallelExport(table, format, workers)) {
+            System.out.println(String.join(",", export.sample(count + 1)));
+        } catch (Exception e) {
+            e.printStackTrace();
+            Exit.exit(-1);
+        }
+    }
+
+    /**
+     * @return the table, or null if it can't be referenced
+     */
+    private static CloudTable getTable(CloudStorageAccount account, URI tableUri) {
+        try {
+            return AccountUtils.getTableClient(account).getTableReference(tableUri.getPath().substring(1));
+        } catch (Exception e) {
+            e.printStackTrace();
+            Exit.exit(-1);
+            return null;
+        }
     }
 
     public Format getFormat(String format) {
@@ -0,0 +1,43 @@
+package io.tenmax.azurekit;
+
+/**
+ * Ends a command. A command run on its own exits the process, while a
+ * command run by {@link AzureKit} only unwinds back to the dispatcher.
+ */
+public class Exit {
+    /**
+     * Thrown instead of exiting the process. It is an error like ThreadDeath,
+     * so the catch-all handlers of the commands let it pass.
+     */
+    public static class ExitError extends Error {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public ExitError(int status) {
+            super("exit " + status);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private static volatile boolean batch = false;
+
+    public static void setBatch(boolean batch) {
+        Exit.batch = batch;
+    }
+
+    public static boolean isBatch() {
+        return batch;
+    }
+
+    public static void exit(int status) {
+        if (batch) {
+            throw new ExitError(status);
+        }
+        System.exit(status);
+    }
+}
@@ -1,6 +1,9 @@
 package io.tenmax.azurekit.azure;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.table.CloudTableClient;
+import io.tenmax.azurekit.Exit;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -8,16 +11,42 @@ import java.io.FileReader;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The accounts and their clients are kept for the life of the process, so
+ * the commands run by one process share the parsed accounts and the clients.
+ */
 public class AccountUtils {
+    private static List<CloudStorageAccount> fileAccounts = null;
+    private static final Map<String, Optional<CloudStorageAccount>> connStringAccounts = new ConcurrentHashMap<>();
+    private static final Map<CloudStorageAccount, CloudBlobClient> blobClients = new ConcurrentHashMap<>();
+    private static final Map<CloudStorageAccount, CloudTableClient> tableClients = new ConcurrentHashMap<>();
+
     public static List<CloudStorageAccount> readAccounts(String connString) {
-        List<CloudStorageAccount> accounts = readAccountsFromFile();
-        readAccountsFromConnString(connString).ifPresent(accounts::add);
+        List<CloudStorageAccount> accounts;
+        synchronized (AccountUtils.class) {
+            if (fileAccounts == null) {
+                fileAccounts = readAccountsFromFile();
+            }
+            accounts = new ArrayList<>(fileAccounts);
+        }
+        connStringAccounts.computeIfAbsent(connString, AccountUtils::readAccountsFromConnString)
+                .ifPresent(accounts::add);
 
         return accounts;
     }
 
+    public static CloudBlobClient getBlobClient(CloudStorageAccount account) {
+        return blobClients.computeIfAbsent(account, CloudStorageAccount::createCloudBlobClient);
+    }
+
+    public static CloudTableClient getTableClient(CloudStorageAccount account) {
+        return tableClients.computeIfAbsent(account, CloudStorageAccount::createCloudTableClient);
+    }
+
     private static List<CloudStorageAccount> readAccountsFromFile() {
         List<CloudStorageAccount> accounts = new ArrayList<>();
 
@@ -37,7 +66,7 @@ public class AccountUtils {
             }
         } catch (Exception e) {
             e.printStackTrace();
-            System.exit(-1);
+            Exit.exit(-1);
         }
 
         return accounts;
@@ -52,7 +81,7 @@ public class AccountUtils {
             }
         } catch (Exception e) {
             e.printStackTrace();
-            System.exit(0);
+            Exit.exit(0);
         }
 
         return account;
@@ -70,7 +99,7 @@ public class AccountUtils {
         }
         if (account == null) {
             System.err.println("Connection String for " + accountName + " is not defined");
-            System.exit(-1);
+            Exit.exit(-1);
         }
 
         return account;
@@ -0,0 +1,67 @@
+package io.tenmax.azurekit.azure;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.EnumSet;
+
+public class BlobResolver {
+    public static String getContainerName(URI blobUri) {
+        return blobUri.getPath().split("/")[1];
+    }
+
+    public static String getBlobName(URI blobUri) {
+        return blobUri.getPath().substring(2 + getContainerName(blobUri).length());
+    }
+
+    public static CloudBlobContainer getContainer(CloudStorageAccount account, URI blobUri)
+            throws URISyntaxException, StorageException {
+        CloudBlobClient blobClient = AccountUtils.getBlobClient(account);
+        return blobClient.getContainerReference(getContainerName(blobUri));
+    }
+
+    /**
+     * Resolve the blob at the uri with a single request, a listing of the
+     * one blob at its name, which hands out the blob of its type. The blob
+     * is the first one listed, as no other name with the prefix sorts before it.
+     *
+     * @return the blob with its properties loaded, or null if the blob or its container doesn't exist.
+     */
+    public static CloudBlob resolve(CloudStorageAccount account, URI blobUri)
+            throws URISyntaxException, StorageException {
+        CloudBlobContainer container = getContainer(account, blobUri);
+        String name = getBlobName(blobUri);
+
+        ResultSegment<ListBlobItem> segment;
+        try {
+            segment = container.listBlobsSegmented(
+                    name, true, EnumSet.of(BlobListingDetails.METADATA, BlobListingDetails.COPY), 1, null, null, null);
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+
+        for (ListBlobItem item : segment.getResults()) {
+            if (item instanceof CloudBlob && ((CloudBlob) item).getName().equals(name)) {
+                return (CloudBlob) item;
+            }
+        }
+        return null;
+    }
+
+    public static boolean isContainerNotFound(StorageException e) {
+        return StorageErrorCodeStrings.CONTAINER_NOT_FOUND.equals(e.getErrorCode());
+    }
+}
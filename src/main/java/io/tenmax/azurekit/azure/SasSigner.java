@@ -0,0 +1,74 @@
+package io.tenmax.azurekit.azure;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Signs read only blob SAS urls locally with the account key, without a
+ * request to the service. The signature is the HMAC-SHA256 of the same
+ * string the sdk signs for the storage service version it uses, and one MAC
+ * instance is reused for all the blobs.
+ */
+public class SasSigner {
+    private static final String VERSION = "2015-02-21";
+
+    private final String accountName;
+    private final Mac mac;
+    private final String expiry;
+
+    public SasSigner(CloudStorageAccount account, Date expiry) throws InvalidKeyException {
+        if (!(account.getCredentials() instanceof StorageCredentialsAccountAndKey)) {
+            throw new InvalidKeyException("The account " + account.getCredentials().getAccountName() + " has no account key");
+        }
+
+        StorageCredentialsAccountAndKey credentials = (StorageCredentialsAccountAndKey) account.getCredentials();
+        this.accountName = credentials.getAccountName();
+
+        try {
+            mac = Mac.getInstance("HmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        mac.init(new SecretKeySpec(Base64.getDecoder().decode(credentials.exportBase64EncodedKey()), "HmacSHA256"));
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.expiry = format.format(expiry);
+    }
+
+    /**
+     * @return the uri of the blob with a read only signature
+     */
+    public URI getReadUri(URI blobUri) {
+        // the canonical resource starts with the service name since 2015-02-21
+        String resource = "/blob/" + accountName + "/" + BlobResolver.getContainerName(blobUri) + "/" +
+                BlobResolver.getBlobName(blobUri);
+        String stringToSign = "r\n\n" + expiry + "\n" + resource + "\n\n" + VERSION + "\n\n\n\n\n";
+
+        String signature = Base64.getEncoder().encodeToString(mac.doFinal(stringToSign.getBytes(StandardCharsets.UTF_8)));
+        String query = "sv=" + VERSION + "&se=" + encode(expiry) + "&sr=b&sp=r&sig=" + encode(signature);
+
+        return URI.create(blobUri.getScheme() + "://" + blobUri.getRawAuthority() + blobUri.getRawPath() + "?" + query);
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package io.tenmax.azurekit.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPolicy;
+
+import java.net.URI;
+import java.security.InvalidKeyException;
+import java.time.Instant;
+import java.util.Date;
+
+public class SasUtils {
+    /**
+     * @return the uri of the blob with a read only shared access signature which expires after the seconds.
+     */
+    public static URI getReadUri(CloudBlob blob, int seconds) throws StorageException, InvalidKeyException {
+        SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
+        policy.setPermissionsFromString("r");
+        policy.setSharedAccessExpiryTime(Date.from(Instant.now().plusSeconds(seconds)));
+
+        String s = blob.generateSharedAccessSignature(policy, null);
+        return URI.create(blob.getUri() + "?" + s);
+    }
+}
@@ -0,0 +1,152 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.blob.CloudBlob;
+import io.tenmax.azurekit.io.ChannelOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A local directory of downloaded blobs. An entry is keyed by the blob uri and
+ * its ETag, so a blob which changed on the server simply misses the cache.
+ * The directory is kept under {@code maxBytes} by evicting the least recently
+ * used entries.
+ */
+public class BlobCache {
+    private static final String ENTRY_SUFFIX = ".blob";
+    private static final long MAP_SIZE = 256 * 1024 * 1024;
+
+    private final File directory;
+    private final long maxBytes;
+
+    public BlobCache(File directory, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create the cache directory " + directory);
+        }
+
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean accepts(CloudBlob blob) {
+        return blob.getProperties().getLength() <= maxBytes;
+    }
+
+    /**
+     * @return the cached copy of the blob version, or null if there is none.
+     */
+    public File lookup(CloudBlob blob) {
+        File file = entryFile(blob);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Store the content of the blob version read from {@code in}, and evict
+     * other versions of the blob and the least recently used entries.
+     *
+     * @param buffer the copy buffer, which the caller takes before opening the
+     *               stream, as a range reader may use up the {@link io.tenmax.azurekit.io.BufferPool}
+     */
+    public File store(CloudBlob blob, InputStream in, byte[] buffer) throws IOException {
+        File file = entryFile(blob);
+        File tmp = File.createTempFile("download", ".tmp", directory);
+
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        evict(file);
+        return file;
+    }
+
+    /**
+     * Write a cached file to the output through memory mapped windows.
+     */
+    public static void transfer(File file, ChannelOutputStream out) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_SIZE) {
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+                out.write(buffer);
+            }
+        }
+    }
+
+    private void evict(File keep) {
+        String keepPrefix = keep.getName().substring(0, keep.getName().indexOf('.'));
+
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+
+        long total = 0;
+        for (File entry : entries) {
+            // older versions of the same blob are never read again
+            if (!entry.equals(keep) && entry.getName().startsWith(keepPrefix + ".")) {
+                entry.delete();
+            } else {
+                total += entry.length();
+            }
+        }
+
+        for (File entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (!entry.equals(keep) && entry.exists()) {
+                total -= entry.length();
+                entry.delete();
+            }
+        }
+    }
+
+    private File entryFile(CloudBlob blob) {
+        String name = sha1(blob.getUri().toString()) + "." +
+                sha1(blob.getProperties().getEtag()).substring(0, 16) + ENTRY_SUFFIX;
+        return new File(directory, name);
+    }
+
+    private static String sha1(String s) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(s.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
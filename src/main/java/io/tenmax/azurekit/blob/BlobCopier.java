@@ -0,0 +1,205 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CopyState;
+import com.microsoft.azure.storage.blob.CopyStatus;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies blobs on the server side. At most {@code maxCopies} copies are
+ * pending at a time. Copies which don't complete with their start request
+ * are polled by a single thread with one properties request each, and the
+ * poll interval backs off while none of them completes. A copy whose target
+ * is gone, or whose properties keep failing to load, is given up.
+ */
+public class BlobCopier implements AutoCloseable {
+    private static final int STARTERS = 8;
+    private static final int MAX_POLL_ERRORS = 5;
+
+    private static class Copy {
+        final String source;
+        final CloudBlob target;
+        // the polls in a row which failed, only used by the poller
+        int errors = 0;
+
+        Copy(String source, CloudBlob target) {
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    private final int maxCopies;
+    private final long minInterval;
+    private final long maxInterval;
+    private final Semaphore slots;
+    private final ExecutorService starters;
+    private final Thread poller;
+    private final List<Copy> pending = new ArrayList<>();
+
+    private final AtomicInteger copied = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private boolean force = false;
+
+    public BlobCopier(int maxCopies, long minInterval, long maxInterval) {
+        this.maxCopies = maxCopies;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.slots = new Semaphore(maxCopies);
+        this.starters = Executors.newFixedThreadPool(Math.min(STARTERS, maxCopies), r -> {
+            Thread t = new Thread(r, "copy-starter");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.poller = new Thread(this::poll, "copy-poller");
+        this.poller.setDaemon(true);
+        this.poller.start();
+    }
+
+    /**
+     * Overwrite the target blobs which exist.
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * Start copying the source to the target once fewer than the maximum copies are pending.
+     *
+     * @param sourceUri the uri the service reads the source from, with a signature if it is in another account
+     */
+    public void copy(CloudBlob source, URI sourceUri, CloudBlob target) throws InterruptedException {
+        slots.acquire();
+        starters.submit(() -> {
+            try {
+                AccessCondition condition = force ? null : AccessCondition.generateIfNoneMatchCondition("*");
+                target.startCopy(sourceUri, null, condition, null, null);
+
+                // the state is known once the start request returns, unless the sdk didn't read it
+                Copy copy = new Copy(source.getUri().toString(), target);
+                CopyState state = target.getCopyState();
+                if (state == null || !completed(copy, state)) {
+                    synchronized (pending) {
+                        pending.add(copy);
+                        pending.notifyAll();
+                    }
+                }
+            } catch (StorageException e) {
+                boolean exists = e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT ||
+                        e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED;
+                fail(source.getUri().toString(), target, exists ? "blob exists. Use -f to force copy." : e.getMessage());
+            } catch (Exception e) {
+                fail(source.getUri().toString(), target, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Wait for all the copies and print a summary.
+     *
+     * @return the number of blobs which failed to copy
+     */
+    public int finish() throws InterruptedException {
+        // every slot is released once its copy is done
+        slots.acquire(maxCopies);
+        slots.release(maxCopies);
+
+        System.err.println("copied " + copied.get() + " blobs, " + failed.get() + " failed");
+        return failed.get();
+    }
+
+    @Override
+    public void close() {
+        starters.shutdownNow();
+        poller.interrupt();
+    }
+
+    private void poll() {
+        long interval = minInterval;
+        try {
+            while (true) {
+                List<Copy> copies;
+                synchronized (pending) {
+                    while (pending.isEmpty()) {
+                        interval = minInterval;
+                        pending.wait();
+                    }
+                    copies = new ArrayList<>(pending);
+                }
+
+                Thread.sleep(interval);
+
+                boolean progress = false;
+                for (Copy copy : copies) {
+                    CopyState state;
+                    try {
+                        copy.target.downloadAttributes();
+                        state = copy.target.getCopyState();
+                        copy.errors = 0;
+                    } catch (StorageException e) {
+                        if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND &&
+                                ++copy.errors < MAX_POLL_ERRORS) {
+                            // try again in the next round
+                            continue;
+                        }
+
+                        synchronized (pending) {
+                            pending.remove(copy);
+                        }
+                        fail(copy.source, copy.target, e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND ?
+                                "the target blob is gone" :
+                                e.getMessage());
+                        progress = true;
+                        continue;
+                    }
+
+                    if (completed(copy, state)) {
+                        synchronized (pending) {
+                            pending.remove(copy);
+                        }
+                        progress = true;
+                    }
+                }
+
+                interval = progress ? minInterval : Math.min(interval * 2, maxInterval);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * @return whether the copy is done, and if so record it and free its slot
+     */
+    private boolean completed(Copy copy, CopyState state) {
+        CopyStatus status = state == null ? CopyStatus.SUCCESS : state.getStatus();
+        if (status == CopyStatus.PENDING) {
+            return false;
+        }
+
+        if (status == CopyStatus.SUCCESS) {
+            copied.incrementAndGet();
+            slots.release();
+        } else {
+            fail(copy.source, copy.target, status + " " + state.getStatusDescription());
+        }
+        return true;
+    }
+
+    private void fail(String source, CloudBlob target, String message) {
+        failed.incrementAndGet();
+        System.err.println("Can't copy " + source + " to " + target.getUri() + ": " + message);
+        slots.release();
+    }
+}
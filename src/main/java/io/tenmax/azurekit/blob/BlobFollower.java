@@ -0,0 +1,96 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
+import com.microsoft.azure.storage.blob.CloudBlob;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Watches a growing blob like {@code tail -f}. The blob properties are polled,
+ * backing off while nothing changes, and only the appended bytes are fetched.
+ * The committed bytes of an append blob never change, so they are fetched
+ * without the etag condition, which a busy append blob would keep failing.
+ */
+public class BlobFollower {
+    private final CloudBlob blob;
+    private final long minInterval;
+    private final long maxInterval;
+
+    private long offset;
+    private String etag;
+
+    public BlobFollower(CloudBlob blob, long offset, long minInterval, long maxInterval) {
+        this.blob = blob;
+        this.offset = offset;
+        this.etag = blob.getProperties().getEtag();
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    public void follow(OutputStream out) throws StorageException, IOException, InterruptedException {
+        long interval = minInterval;
+
+        while (true) {
+            Thread.sleep(interval);
+
+            if (!poll(out)) {
+                interval = Math.min(interval * 2, maxInterval);
+                continue;
+            }
+
+            out.flush();
+            interval = minInterval;
+        }
+    }
+
+    /**
+     * @return true if new bytes were written
+     */
+    private boolean poll(OutputStream out) throws StorageException {
+        try {
+            blob.downloadAttributes();
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            throw e;
+        }
+
+        String newEtag = blob.getProperties().getEtag();
+        long length = blob.getProperties().getLength();
+        if (newEtag.equals(etag) && length == offset) {
+            return false;
+        }
+
+        if (length < offset) {
+            System.err.println("azurecat: " + blob.getUri() + ": blob truncated");
+            offset = 0;
+        }
+        etag = newEtag;
+
+        if (length == offset) {
+            return false;
+        }
+
+        AccessCondition condition = blob instanceof CloudAppendBlob ?
+                null :
+                AccessCondition.generateIfMatchCondition(newEtag);
+        try {
+            blob.downloadRange(offset, length - offset, out, condition, null, null);
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED) {
+                // changed again since the properties were read, pick it up with the next poll
+                etag = null;
+                return false;
+            }
+            throw e;
+        }
+
+        offset = length;
+        return true;
+    }
+}
@@ -0,0 +1,95 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lists the blobs under a prefix with a flat, segmented listing. The next
+ * page is requested in the background while the current one is consumed,
+ * and blobs not matching the postfix are dropped before they are handed out.
+ */
+public class BlobLister implements AutoCloseable {
+    private static final int PAGE_SIZE = 5000;
+
+    private final CloudBlobContainer container;
+    private final String prefix;
+    private final String postfix;
+    private final ExecutorService executor;
+
+    private Future<ResultSegment<ListBlobItem>> nextPage;
+    private Iterator<ListBlobItem> current;
+
+    public BlobLister(CloudBlobContainer container, String prefix, String postfix) {
+        this.container = container;
+        this.prefix = prefix;
+        this.postfix = postfix;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "blob-lister");
+            t.setDaemon(true);
+            return t;
+        });
+
+        nextPage = fetch(null);
+    }
+
+    private Future<ResultSegment<ListBlobItem>> fetch(ResultContinuation token) {
+        return executor.submit(() -> container.listBlobsSegmented(
+                prefix, true, EnumSet.noneOf(BlobListingDetails.class), PAGE_SIZE, token, null, null));
+    }
+
+    /**
+     * @return the next matching blob, or {@code null} when the listing is exhausted.
+     */
+    public CloudBlob next() throws IOException {
+        while (true) {
+            while (current != null && current.hasNext()) {
+                ListBlobItem item = current.next();
+                if (!(item instanceof CloudBlob)) {
+                    continue;
+                }
+
+                CloudBlob blob = (CloudBlob) item;
+                if (postfix == null || blob.getUri().toString().endsWith(postfix)) {
+                    return blob;
+                }
+            }
+
+            if (nextPage == null) {
+                return null;
+            }
+
+            ResultSegment<ListBlobItem> page;
+            try {
+                page = nextPage.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException("Can't list the blobs with prefix " + prefix, e.getCause());
+            }
+
+            nextPage = page.getHasMoreResults() ? fetch(page.getContinuationToken()) : null;
+            current = page.getResults().iterator();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (nextPage != null) {
+            nextPage.cancel(true);
+        }
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,234 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.blob.CloudBlob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads the next blobs of a listing in the background while the current
+ * one is being handled. Blobs are always handed out in the order they were
+ * added. At most {@code readAhead} blobs and {@code maxBytes} bytes are in
+ * flight; a blob which doesn't fit the byte budget is not prefetched and the
+ * handler receives {@code null} to stream it by itself. An optional decoder
+ * runs on the download threads, e.g. to inflate gzip blobs on several cores.
+ * The decoded bytes count against the byte budget as they are written, and a
+ * blob whose decoded content doesn't fit is handed out as {@code null} too.
+ * The content is handed out in the buffer it was downloaded into, so it
+ * takes no memory beyond the budget.
+ */
+public class BlobPrefetcher {
+    // the largest array the VM hands out
+    private static final long MAX_CONTENT_SIZE = Integer.MAX_VALUE - 8;
+
+    public interface Handler {
+        void handle(CloudBlob blob, InputStream prefetched) throws Exception;
+    }
+
+    public interface Decoder {
+        void decode(InputStream content, OutputStream out) throws IOException;
+    }
+
+    /**
+     * Thrown by the decoded output when it would exceed the byte budget.
+     */
+    private static class BudgetExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Hands its buffer over to the reader instead of copying it.
+     */
+    private static class ContentOutputStream extends ByteArrayOutputStream {
+        ContentOutputStream(int size) {
+            super(size);
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * Collects the decoded content, taking its bytes from the budget as they are written.
+     */
+    private class BudgetOutputStream extends OutputStream {
+        private final ContentOutputStream buffer;
+
+        BudgetOutputStream(int size) {
+            buffer = new ContentOutputStream(size);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            reserve(1);
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            reserve(len);
+            buffer.write(b, off, len);
+        }
+
+        private void reserve(long bytes) throws BudgetExceededException {
+            long current;
+            do {
+                current = inFlightBytes.get();
+                if (current + bytes > maxBytes || buffer.size() + bytes > MAX_CONTENT_SIZE) {
+                    throw new BudgetExceededException();
+                }
+            } while (!inFlightBytes.compareAndSet(current, current + bytes));
+        }
+    }
+
+    private static class Entry {
+        final CloudBlob blob;
+        final Future<ContentOutputStream> content;
+
+        Entry(CloudBlob blob, Future<ContentOutputStream> content) {
+            this.blob = blob;
+            this.content = content;
+        }
+    }
+
+    private final int readAhead;
+    private final long maxBytes;
+    private final Decoder decoder;
+    private final Handler handler;
+    private final ExecutorService executor;
+    private final Deque<Entry> pending = new ArrayDeque<>();
+
+    // shared with the download threads, which add the decoded bytes
+    private final AtomicLong inFlightBytes = new AtomicLong();
+
+    public BlobPrefetcher(int readAhead, long maxBytes, Decoder decoder, Handler handler) {
+        this.readAhead = readAhead;
+        this.maxBytes = maxBytes;
+        this.decoder = decoder;
+        this.handler = handler;
+        this.executor = readAhead <= 0 ? null : Executors.newFixedThreadPool(readAhead, r -> {
+            Thread t = new Thread(r, "blob-prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void add(CloudBlob blob) throws Exception {
+        add(blob, true);
+    }
+
+    /**
+     * @param prefetch false to hand the blob out in order without downloading it, e.g. when it is cached
+     */
+    public void add(CloudBlob blob, boolean prefetch) throws Exception {
+        if (executor == null) {
+            handler.handle(blob, null);
+            return;
+        }
+
+        long length = prefetch ? blob.getProperties().getLength() : 0;
+        while (!pending.isEmpty() &&
+                (pending.size() >= readAhead || inFlightBytes.get() + length > maxBytes)) {
+            handleNext();
+        }
+
+        Future<ContentOutputStream> content = null;
+        if (prefetch && length <= MAX_CONTENT_SIZE && inFlightBytes.get() + length <= maxBytes) {
+            inFlightBytes.addAndGet(length);
+            content = executor.submit(() -> download(blob));
+        }
+        pending.add(new Entry(blob, content));
+    }
+
+    public void finish() throws Exception {
+        try {
+            while (!pending.isEmpty()) {
+                handleNext();
+            }
+        } finally {
+            close();
+        }
+    }
+
+    public void close() {
+        for (Entry entry : pending) {
+            if (entry.content != null) {
+                entry.content.cancel(true);
+            }
+        }
+        pending.clear();
+
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void handleNext() throws Exception {
+        Entry entry = pending.poll();
+        if (entry.content == null) {
+            handler.handle(entry.blob, null);
+            return;
+        }
+
+        ContentOutputStream content;
+        try {
+            content = entry.content.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Can't prefetch the blob at " + entry.blob.getUri(), e.getCause());
+        }
+        if (content == null) {
+            // the decoded content is too large, let the handler stream it
+            handler.handle(entry.blob, null);
+            return;
+        }
+
+        inFlightBytes.addAndGet(-content.size());
+        handler.handle(entry.blob, content.toInputStream());
+    }
+
+    /**
+     * @return the content, whose length stays taken from the budget until it is handed out,
+     * or null if the decoded content doesn't fit the budget
+     */
+    private ContentOutputStream download(CloudBlob blob) throws Exception {
+        long length = blob.getProperties().getLength();
+        ContentOutputStream raw = new ContentOutputStream((int) length);
+        try {
+            blob.download(raw, AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag()), null, null);
+        } catch (Exception e) {
+            inFlightBytes.addAndGet(-length);
+            throw e;
+        }
+
+        if (decoder == null) {
+            return raw;
+        }
+
+        BudgetOutputStream decoded = new BudgetOutputStream(raw.size());
+        try {
+            decoder.decode(raw.toInputStream(), decoded);
+        } catch (BudgetExceededException e) {
+            inFlightBytes.addAndGet(-decoded.buffer.size());
+            return null;
+        } catch (Exception e) {
+            inFlightBytes.addAndGet(-decoded.buffer.size());
+            throw e;
+        } finally {
+            // the compressed content is dropped
+            inFlightBytes.addAndGet(-length);
+        }
+        return decoded.buffer;
+    }
+}
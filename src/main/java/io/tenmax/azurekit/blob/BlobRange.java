@@ -0,0 +1,99 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlob;
+
+/**
+ * A byte range of a blob, resolved against the length of the blob.
+ */
+public class BlobRange {
+    private static final int TAIL_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_TAIL_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final long offset;
+    private final long count;
+
+    public BlobRange(long offset, long count) {
+        this.offset = offset;
+        this.count = count;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Parse a range like {@code start-end} (end inclusive), {@code start-} or {@code -suffixLength}.
+     */
+    public static BlobRange parse(String spec, long length) {
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            throw new IllegalArgumentException("Invalid range " + spec);
+        }
+
+        String start = spec.substring(0, dash).trim();
+        String end = spec.substring(dash + 1).trim();
+        if (start.isEmpty()) {
+            return tailBytes(Long.parseLong(end), length);
+        }
+
+        long offset = Math.min(Long.parseLong(start), length);
+        long last = end.isEmpty() ? length - 1 : Math.min(Long.parseLong(end), length - 1);
+        if (last < offset - 1) {
+            throw new IllegalArgumentException("Invalid range " + spec);
+        }
+        return new BlobRange(offset, last - offset + 1);
+    }
+
+    public static BlobRange headBytes(long count, long length) {
+        return new BlobRange(0, Math.min(count, length));
+    }
+
+    public static BlobRange tailBytes(long count, long length) {
+        long offset = Math.max(0, length - count);
+        return new BlobRange(offset, length - offset);
+    }
+
+    /**
+     * Find the last {@code lines} lines by reading the blob backwards in growing
+     * chunks until enough newlines are seen.
+     */
+    public static BlobRange tailLines(CloudBlob blob, int lines, long length) throws StorageException {
+        AccessCondition condition = AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+        byte[] buffer = new byte[TAIL_CHUNK_SIZE];
+
+        int found = 0;
+        long end = length;
+        while (end > 0 && lines > 0) {
+            int size = (int) Math.min(buffer.length, end);
+            long start = end - size;
+
+            int read = 0;
+            while (read < size) {
+                read += blob.downloadRangeToByteArray(
+                        start + read, (long) (size - read), buffer, read, condition, null, null);
+            }
+
+            for (int i = size - 1; i >= 0; i--) {
+                // the newline which terminates the last line doesn't start a line
+                if (buffer[i] == '\n' && start + i != length - 1 && ++found == lines) {
+                    long offset = start + i + 1;
+                    return new BlobRange(offset, length - offset);
+                }
+            }
+
+            end = start;
+            if (buffer.length < MAX_TAIL_CHUNK_SIZE) {
+                buffer = new byte[buffer.length * 2];
+            }
+        }
+
+        long offset = lines > 0 ? 0 : length;
+        return new BlobRange(offset, length - offset);
+    }
+}
@@ -0,0 +1,495 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import io.tenmax.azurekit.io.BufferPool;
+import io.tenmax.azurekit.io.GzipCompressor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Uploads a stream as the blocks of a block blob. The input is cut into
+ * fixed-size blocks which are uploaded by a pool of workers, and the block
+ * list is committed at the end. At most two blocks per worker are in flight
+ * and their buffers are drawn from the {@link BufferPool}, so reading waits
+ * for the uploads when either is exhausted.
+ *
+ * With gzip enabled, every block is compressed by its worker into a gzip
+ * member of its own, so the blob is a standard multi-member gzip stream.
+ *
+ * With a checkpoint, block ids are derived from the position of the input
+ * block and every uploaded block is recorded. A block which was recorded
+ * with the same content and is still among the uncommitted blocks of the
+ * blob is not uploaded again.
+ *
+ * In delta mode, block ids are the SHA-256 of the block content instead. A
+ * block the blob already has, committed or not, is not uploaded again and
+ * the committed list reuses it. Optionally the input is cut at
+ * content-defined boundaries, so an insertion doesn't shift every later
+ * block.
+ */
+public class BlockUploader implements AutoCloseable {
+    private static class Buffers {
+        final byte[] data;
+        final byte[] compressed;
+
+        Buffers(byte[] data, byte[] compressed) {
+            this.data = data;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * The maximum block size of the storage service version used by the sdk.
+     */
+    public static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private final CloudBlockBlob blob;
+    private final int blockSize;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final BufferPool pool = BufferPool.getInstance();
+    private final Semaphore slots;
+    private final List<Future<List<String>>> uploads = new ArrayList<>();
+    private final List<String> blockIds = new ArrayList<>();
+
+    private volatile boolean closed = false;
+    private boolean gzip = false;
+    private UploadCheckpoint checkpoint = null;
+    private boolean delta = false;
+    private ContentChunker chunker = null;
+    private final Map<String, Long> serverBlocks = new HashMap<>();
+    private int checkedUploads = 0;
+
+    public BlockUploader(CloudBlockBlob blob, int workers, int blockSize) {
+        this(blob, newExecutor(workers), true, workers, blockSize);
+    }
+
+    /**
+     * Upload the blocks on an executor shared with other uploaders. The executor is not shut down on close.
+     */
+    public BlockUploader(CloudBlockBlob blob, ExecutorService executor, int workers, int blockSize) {
+        this(blob, executor, false, workers, blockSize);
+    }
+
+    private BlockUploader(CloudBlockBlob blob, ExecutorService executor, boolean ownExecutor,
+                          int workers, int blockSize) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("The block size must be between 1 and " + MAX_BLOCK_SIZE + " bytes");
+        }
+
+        this.blob = blob;
+        this.blockSize = blockSize;
+        this.slots = new Semaphore(workers * 2);
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    public static ExecutorService newExecutor(int workers) {
+        return Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "block-uploader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Record the uploaded blocks in the file and skip the blocks recorded by a
+     * previous run. Must be called after the other settings.
+     */
+    public void setCheckpoint(File file) throws IOException, StorageException {
+        // ids named by position are only valid for the same blob, cut the same way
+        String mode = !delta ? "index" : chunker != null ? "cdc" : "delta";
+        checkpoint = new UploadCheckpoint(file,
+                "blob=" + blob.getUri() + " blockSize=" + blockSize + " gzip=" + gzip + " mode=" + mode);
+
+        try {
+            for (BlockEntry block : blob.downloadBlockList(BlockListingFilter.UNCOMMITTED, null, null, null)) {
+                serverBlocks.put(block.getId(), block.getSize());
+            }
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Name the blocks by their content and skip the blocks the blob already has.
+     *
+     * @return false if the blob has committed blocks named otherwise. Block ids of
+     * different lengths can't be mixed, so the blob has to be deleted first.
+     */
+    public boolean setDelta(boolean contentDefined) throws StorageException {
+        delta = true;
+        chunker = contentDefined ? new ContentChunker(blockSize) : null;
+
+        serverBlocks.clear();
+        String sample = contentBlockId(new byte[0], 0);
+        try {
+            for (BlockEntry block : blob.downloadBlockList(BlockListingFilter.ALL, null, null, null)) {
+                if (block.getId().length() == sample.length()) {
+                    serverBlocks.put(block.getId(), block.getSize());
+                } else if (block.getSearchMode() == BlockSearchMode.COMMITTED) {
+                    serverBlocks.clear();
+                    return false;
+                }
+            }
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Upload the stream, reading the blocks on the calling thread.
+     */
+    public void upload(InputStream in) throws IOException, InterruptedException {
+        // the data after a content-defined boundary, carried over to the next block
+        byte[] pending = chunker == null ? null : pool.acquire(blockSize);
+        int pendingLength = 0;
+        boolean eof = false;
+
+        try {
+            while (true) {
+                Buffers buffers = acquire();
+                byte[] buffer = buffers.data;
+
+                int length = pendingLength;
+                if (pendingLength > 0) {
+                    System.arraycopy(pending, 0, buffer, 0, pendingLength);
+                    pendingLength = 0;
+                }
+
+                int read;
+                while (!eof && length < buffer.length) {
+                    if ((read = in.read(buffer, length, buffer.length - length)) > 0) {
+                        length += read;
+                    } else {
+                        eof = true;
+                    }
+                }
+
+                if (length == 0) {
+                    release(buffers);
+                    return;
+                }
+
+                if (chunker != null) {
+                    int cut = chunker.cut(buffer, length);
+                    pendingLength = length - cut;
+                    System.arraycopy(buffer, cut, pending, 0, pendingLength);
+                    length = cut;
+                }
+
+                submit(buffers, length);
+            }
+        } finally {
+            if (pending != null) {
+                pool.release(pending);
+            }
+        }
+    }
+
+    /**
+     * @return a stream whose data is uploaded in blocks as it is written. Closing the
+     * stream uploads the last block, and the block list is committed by {@link #commit}.
+     */
+    public OutputStream openOutputStream() {
+        if (chunker != null) {
+            throw new IllegalStateException("Content-defined blocks are cut from an input stream");
+        }
+
+        return new OutputStream() {
+            private Buffers buffers = null;
+            private int length = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (buffers == null) {
+                        buffers = acquireInterruptibly();
+                        length = 0;
+                    }
+
+                    int n = Math.min(len, buffers.data.length - length);
+                    System.arraycopy(b, off, buffers.data, length, n);
+                    length += n;
+                    off += n;
+                    len -= n;
+
+                    if (length == buffers.data.length) {
+                        Buffers full = buffers;
+                        buffers = null;
+                        submitInterruptibly(full, length);
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (buffers == null) {
+                    return;
+                }
+
+                Buffers last = buffers;
+                buffers = null;
+                if (length > 0) {
+                    submitInterruptibly(last, length);
+                } else {
+                    release(last);
+                }
+            }
+
+            private Buffers acquireInterruptibly() throws IOException {
+                try {
+                    return acquire();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            private void submitInterruptibly(Buffers buffers, int length) throws IOException {
+                try {
+                    submit(buffers, length);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+    }
+
+    private void submit(Buffers buffers, int length) throws IOException, InterruptedException {
+        final int index = uploads.size();
+        uploads.add(executor.submit(() -> {
+            try {
+                if (closed) {
+                    return Collections.emptyList();
+                }
+                return uploadBlock(index, buffers, length);
+            } finally {
+                release(buffers);
+            }
+        }));
+
+        checkFailures();
+    }
+
+    /**
+     * Upload a regular file. Each worker reads its own block with a positional read.
+     */
+    public void upload(FileChannel channel) throws IOException, InterruptedException {
+        if (chunker != null) {
+            // content-defined boundaries are found by scanning the file in order
+            upload(Channels.newInputStream(channel));
+            return;
+        }
+
+        long size = channel.size();
+
+        for (long position = 0; position < size; position += blockSize) {
+            Buffers buffers = acquire();
+
+            final long offset = position;
+            final int blockLength = (int) Math.min(blockSize, size - position);
+            final int index = uploads.size();
+            uploads.add(executor.submit(() -> {
+                try {
+                    if (closed) {
+                        return Collections.emptyList();
+                    }
+                    ByteBuffer target = ByteBuffer.wrap(buffers.data, 0, blockLength);
+                    while (target.hasRemaining()) {
+                        if (channel.read(target, offset + target.position()) < 0) {
+                            throw new IOException("Unexpected end of file");
+                        }
+                    }
+                    return uploadBlock(index, buffers, blockLength);
+                } finally {
+                    release(buffers);
+                }
+            }));
+
+            checkFailures();
+        }
+    }
+
+    /**
+     * Wait for the uploads and commit the block list.
+     */
+    public void commit(AccessCondition condition) throws IOException, StorageException, InterruptedException {
+        for (Future<List<String>> upload : uploads) {
+            blockIds.addAll(await(upload));
+        }
+
+        List<BlockEntry> blocks = new ArrayList<>(blockIds.size());
+        for (String blockId : blockIds) {
+            // content named blocks are either uploaded now or already committed
+            blocks.add(new BlockEntry(blockId, delta ? BlockSearchMode.LATEST : BlockSearchMode.UNCOMMITTED));
+        }
+        blob.commitBlockList(blocks, condition, null, null);
+
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // queued blocks of a failed upload are skipped, but still release their buffers
+        closed = true;
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+
+        if (checkpoint != null) {
+            checkpoint.close();
+        }
+    }
+
+    /**
+     * Upload the data of the input block at the index, which may take several
+     * blocks once compressed.
+     *
+     * @return the ids of the uploaded blocks
+     */
+    private List<String> uploadBlock(int index, Buffers buffers, int length) throws IOException {
+        String md5 = null;
+        if (checkpoint != null) {
+            md5 = md5(buffers.data, length);
+            List<String> ids = checkpoint.reusable(index, md5, serverBlocks);
+            if (ids != null) {
+                return ids;
+            }
+        }
+
+        List<String> ids = new ArrayList<>(1);
+        List<Long> sizes = new ArrayList<>(1);
+        if (buffers.compressed == null) {
+            uploadPart(index, ids, sizes, buffers.data, length);
+        } else {
+            GzipCompressor.compress(buffers.data, 0, length, buffers.compressed,
+                    (chunk, n) -> uploadPart(index, ids, sizes, chunk, n));
+        }
+
+        if (checkpoint != null) {
+            checkpoint.record(index, md5, ids, sizes);
+        }
+        return ids;
+    }
+
+    private void uploadPart(int index, List<String> ids, List<Long> sizes, byte[] buffer, int length)
+            throws IOException {
+        String blockId = delta ? contentBlockId(buffer, length) : blockId(index, ids.size());
+        if (!delta || !Long.valueOf(length).equals(serverBlocks.get(blockId))) {
+            try {
+                blob.uploadBlock(blockId, new ByteArrayInputStream(buffer, 0, length), length);
+            } catch (StorageException e) {
+                throw new IOException(e);
+            }
+        }
+        ids.add(blockId);
+        sizes.add((long) length);
+    }
+
+    private static String md5(byte[] buffer, int length) {
+        return digest("MD5", buffer, length);
+    }
+
+    private static String contentBlockId(byte[] buffer, int length) {
+        return digest("SHA-256", buffer, length);
+    }
+
+    private static String digest(String algorithm, byte[] buffer, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            digest.update(buffer, 0, length);
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String blockId(int index, int part) {
+        // block ids of a blob must have the same length
+        return Base64.getEncoder().encodeToString(
+                String.format("%08d-%02d", index, part).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Buffers acquire() throws InterruptedException {
+        slots.acquire();
+
+        byte[] data = null;
+        try {
+            data = pool.acquire(blockSize);
+            // take the compression buffer up front, so a worker never waits for the pool
+            return new Buffers(data, gzip ? pool.acquire(blockSize) : null);
+        } catch (InterruptedException e) {
+            if (data != null) {
+                pool.release(data);
+            }
+            slots.release();
+            throw e;
+        }
+    }
+
+    private void release(Buffers buffers) {
+        pool.release(buffers.data);
+        if (buffers.compressed != null) {
+            pool.release(buffers.compressed);
+        }
+        slots.release();
+    }
+
+    private void checkFailures() throws IOException, InterruptedException {
+        while (checkedUploads < uploads.size() && uploads.get(checkedUploads).isDone()) {
+            await(uploads.get(checkedUploads++));
+        }
+    }
+
+    private List<String> await(Future<List<String>> upload) throws IOException, InterruptedException {
+        try {
+            return upload.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Can't upload the block of " + blob.getUri(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.DeleteSnapshotsOption;
+import io.tenmax.azurekit.io.BufferPool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads many local files under a blob prefix on a pool of file workers.
+ * A file up to the block size is uploaded with a single put request, and a
+ * larger one as blocks on an executor shared by all the files. A file whose
+ * blob already has the same size and MD5 is skipped.
+ */
+public class BulkUploader implements AutoCloseable {
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final CloudBlobContainer container;
+    private final String prefix;
+    private final int blockWorkers;
+    private final int blockSize;
+    private final ExecutorService fileExecutor;
+    private final ExecutorService blockExecutor;
+    private final Semaphore queued;
+    private final Map<String, CloudBlob> remote = new HashMap<>();
+
+    private final AtomicInteger uploaded = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private boolean force = false;
+
+    public BulkUploader(CloudBlobContainer container, String prefix, int fileWorkers, int blockWorkers, int blockSize) {
+        this.container = container;
+        this.prefix = prefix;
+        this.blockWorkers = blockWorkers;
+        this.blockSize = blockSize;
+        this.queued = new Semaphore(fileWorkers * 2);
+        this.blockExecutor = BlockUploader.newExecutor(blockWorkers);
+        this.fileExecutor = Executors.newFixedThreadPool(fileWorkers, r -> {
+            Thread t = new Thread(r, "file-uploader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Overwrite the blobs which differ from their files.
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * List the blobs under the prefix, to find the files which are uploaded already.
+     */
+    public void listRemote() throws IOException {
+        try (BlobLister lister = new BlobLister(container, prefix, null)) {
+            CloudBlob blob;
+            while ((blob = lister.next()) != null) {
+                remote.put(blob.getName(), blob);
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Queue the file to be uploaded as the blob with the name under the prefix.
+     * Waits while enough files are queued already.
+     */
+    public void add(File file, String name) throws InterruptedException {
+        queued.acquire();
+        fileExecutor.submit(() -> {
+            try {
+                uploadFile(file, prefix + name);
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                System.err.println("Can't upload " + file + ": " + e.getMessage());
+            } finally {
+                queued.release();
+            }
+        });
+    }
+
+    /**
+     * Wait for the queued files and print a summary.
+     *
+     * @return the number of files which failed to upload
+     */
+    public int finish() throws InterruptedException {
+        fileExecutor.shutdown();
+        fileExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        System.err.println("uploaded " + uploaded.get() + " files, skipped " + skipped.get() +
+                " unchanged files, " + failed.get() + " failed");
+        return failed.get();
+    }
+
+    @Override
+    public void close() {
+        fileExecutor.shutdownNow();
+        blockExecutor.shutdownNow();
+    }
+
+    private void uploadFile(File file, String name)
+            throws IOException, StorageException, URISyntaxException, InterruptedException {
+        long length = file.length();
+
+        // only create the blob if nobody else did, or only overwrite the version we have listed
+        AccessCondition condition = AccessCondition.generateIfNoneMatchCondition("*");
+
+        CloudBlob existing = remote.get(name);
+        if (existing != null) {
+            BlobProperties properties = existing.getProperties();
+            if (properties.getLength() == length && properties.getContentMD5() != null &&
+                    properties.getContentMD5().equals(md5(file))) {
+                skipped.incrementAndGet();
+                return;
+            }
+
+            if (!force) {
+                throw new IOException("blob exists. Use -f to force upload.");
+            }
+
+            condition = AccessCondition.generateIfMatchCondition(properties.getEtag());
+            if (!(existing instanceof CloudBlockBlob)) {
+                existing.delete(DeleteSnapshotsOption.NONE, condition, null, null);
+                condition = AccessCondition.generateIfNoneMatchCondition("*");
+            }
+        }
+
+        CloudBlockBlob blob = container.getBlockBlobReference(name);
+        if (length <= blockSize) {
+            BlobRequestOptions options = new BlobRequestOptions();
+            options.setStoreBlobContentMD5(true);
+            try (InputStream in = new FileInputStream(file)) {
+                blob.upload(in, length, condition, options, null);
+            }
+        } else {
+            // the file is read in order on this worker, so the MD5 is computed on the way
+            MessageDigest digest = newMd5();
+            try (BlockUploader uploader = new BlockUploader(blob, blockExecutor, blockWorkers, blockSize);
+                 InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+                uploader.upload(in);
+                blob.getProperties().setContentMD5(Base64.getEncoder().encodeToString(digest.digest()));
+                uploader.commit(condition);
+            }
+        }
+
+        uploaded.incrementAndGet();
+    }
+
+    private static String md5(File file) throws IOException, InterruptedException {
+        MessageDigest digest = newMd5();
+
+        BufferPool pool = BufferPool.getInstance();
+        byte[] buffer = pool.acquire(READ_BUFFER_SIZE);
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.tenmax.azurekit.blob;
+
+import java.util.Random;
+
+/**
+ * Finds content-defined block boundaries with a gear rolling hash. A boundary
+ * depends only on the bytes just before it, so inserting or removing data
+ * only moves the boundaries around the change and the other blocks keep
+ * their content.
+ */
+public class ContentChunker {
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // a fixed seed, so every run finds the same boundaries
+        Random random = new Random(0x6765617248617368L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final long mask;
+
+    /**
+     * Blocks are at least a quarter of the maximum size and half of it on average.
+     */
+    public ContentChunker(int maxSize) {
+        this.minSize = maxSize / 4;
+
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(1, maxSize / 4));
+        // the high bits of the hash depend on the most bytes
+        this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+    }
+
+    /**
+     * @return the length of the first block of the data, or the whole length if there is no boundary
+     */
+    public int cut(byte[] buffer, int length) {
+        long hash = 0;
+        for (int i = minSize; i < length; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & mask) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+}
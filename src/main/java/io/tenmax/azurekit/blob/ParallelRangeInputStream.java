@@ -0,0 +1,195 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import io.tenmax.azurekit.io.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a blob by fetching fixed-size byte ranges concurrently and handing
+ * them out strictly in order. At most {@code parallelism} ranges are in
+ * flight, so memory is bounded by {@code (parallelism + 1) * rangeSize}. The
+ * range buffers are drawn from the {@link BufferPool}, and fewer ranges are
+ * fetched ahead when the pool is exhausted.
+ */
+public class ParallelRangeInputStream extends InputStream {
+    private static class Range {
+        final byte[] buffer;
+        final int size;
+        final Future<byte[]> data;
+
+        Range(byte[] buffer, int size, Future<byte[]> data) {
+            this.buffer = buffer;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    private final CloudBlob blob;
+    private final long end;
+    private final int rangeSize;
+    private final int parallelism;
+    private final AccessCondition accessCondition;
+    private final ExecutorService executor;
+    private final BufferPool pool = BufferPool.getInstance();
+    private final Deque<Range> pending = new ArrayDeque<>();
+
+    private long nextOffset;
+    private byte[] current = null;
+    private int limit = 0;
+    private int position = 0;
+    private boolean closed = false;
+
+    public ParallelRangeInputStream(CloudBlob blob, int parallelism, int rangeSize)
+            throws StorageException, IOException {
+        this(blob, 0, -1, parallelism, rangeSize);
+    }
+
+    /**
+     * @param count the number of bytes to read from the offset, or -1 to read to the end of the blob.
+     */
+    public ParallelRangeInputStream(CloudBlob blob, long offset, long count, int parallelism, int rangeSize)
+            throws StorageException, IOException {
+        if (blob.getProperties().getEtag() == null) {
+            blob.downloadAttributes();
+        }
+
+        long length = blob.getProperties().getLength();
+
+        this.blob = blob;
+        this.nextOffset = Math.min(offset, length);
+        this.end = count < 0 ? length : Math.min(length, nextOffset + count);
+        this.rangeSize = rangeSize;
+        this.parallelism = parallelism;
+        // pin every range to the same version of the blob. The bytes of an append blob
+        // never change, and a busy one would keep failing the condition
+        this.accessCondition = blob instanceof CloudAppendBlob ?
+                null :
+                AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "range-reader");
+            t.setDaemon(true);
+            return t;
+        });
+
+        fill();
+    }
+
+    private void fill() throws IOException {
+        while (pending.size() < parallelism && nextOffset < end) {
+            byte[] buffer = pending.isEmpty() ? acquire() : pool.tryAcquire(rangeSize);
+            if (buffer == null) {
+                return;
+            }
+
+            final long offset = nextOffset;
+            final int size = (int) Math.min(rangeSize, end - offset);
+            pending.add(new Range(buffer, size, executor.submit(() -> readRange(buffer, offset, size))));
+            nextOffset += size;
+        }
+    }
+
+    private byte[] acquire() throws IOException {
+        try {
+            return pool.acquire(rangeSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private byte[] readRange(byte[] buffer, long offset, int size) throws StorageException {
+        int read = 0;
+        while (read < size) {
+            read += blob.downloadRangeToByteArray(
+                    offset + read, (long) (size - read), buffer, read, accessCondition, null, null);
+        }
+        return buffer;
+    }
+
+    private boolean nextRange() throws IOException {
+        releaseCurrent();
+
+        Range range = pending.poll();
+        if (range == null) {
+            return false;
+        }
+
+        try {
+            range.data.get();
+            current = range.buffer;
+            limit = range.size;
+            position = 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.forget(range.buffer);
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            pool.release(range.buffer);
+            throw new IOException("Can't read the range of " + blob.getUri(), e.getCause());
+        }
+
+        fill();
+        return true;
+    }
+
+    private void releaseCurrent() {
+        if (current != null) {
+            pool.release(current);
+            current = null;
+            limit = 0;
+            position = 0;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (position >= limit) {
+            if (!nextRange()) {
+                return -1;
+            }
+        }
+
+        int n = Math.min(len, limit - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        releaseCurrent();
+        for (Range range : pending) {
+            range.data.cancel(true);
+            // a cancelled download may still write into its buffer
+            pool.forget(range.buffer);
+        }
+        pending.clear();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,184 @@
+package io.tenmax.azurekit.blob;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the input into an append blob which is readable while it grows.
+ * Every flush appends the new data as one block, so every byte is uploaded
+ * once and readers only ever see whole flushes.
+ *
+ * A flush happens when the unflushed data reaches the flush size or has
+ * waited for the flush interval, and ends at the last complete line. Each
+ * append is conditional on the length of the blob, so a concurrent writer
+ * fails the upload instead of interleaving with it, and a retried append is
+ * never written twice. An append blob takes at most 50,000 blocks.
+ */
+public class StreamingUploader {
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int QUEUE_SIZE = 16;
+    private static final byte[] EOF = new byte[0];
+
+    private final CloudAppendBlob blob;
+    private final int flushSize;
+    private final long flushInterval;
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    // the unflushed data
+    private final byte[] buffer;
+    private int length = 0;
+
+    private long appended = 0;
+    private volatile IOException readFailure = null;
+
+    public StreamingUploader(CloudAppendBlob blob, int blockSize, int flushSize, long flushInterval) {
+        if (blockSize <= 0 || blockSize > BlockUploader.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException(
+                    "The block size must be between 1 and " + BlockUploader.MAX_BLOCK_SIZE + " bytes");
+        }
+
+        this.blob = blob;
+        this.buffer = new byte[blockSize];
+        this.flushSize = Math.min(flushSize, blockSize);
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Upload the stream until it ends. The blob is created empty with the
+     * condition, replacing a blob of any type, and then appended to.
+     */
+    public void upload(InputStream in, AccessCondition condition)
+            throws IOException, StorageException, InterruptedException {
+        blob.createOrReplace(condition, null, null);
+
+        Thread reader = new Thread(() -> read(in), "stream-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long deadline = 0;
+        while (true) {
+            byte[] chunk;
+            if (deadline == 0) {
+                chunk = chunks.take();
+            } else {
+                chunk = chunks.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            if (chunk == EOF) {
+                if (readFailure != null) {
+                    throw readFailure;
+                }
+                flush(length);
+                return;
+            }
+
+            if (chunk == null) {
+                // the interval passed
+                flush(lineEnd());
+            } else {
+                for (int offset = 0; offset < chunk.length; ) {
+                    int n = Math.min(chunk.length - offset, buffer.length - length);
+                    System.arraycopy(chunk, offset, buffer, length, n);
+                    length += n;
+                    offset += n;
+
+                    if (length == buffer.length) {
+                        // split a line longer than the buffer
+                        int end = lineEnd();
+                        flush(end > 0 ? end : length);
+                    }
+                }
+
+                if (length >= flushSize) {
+                    flush(lineEnd());
+                }
+            }
+
+            if (length == 0) {
+                deadline = 0;
+            } else if (chunk == null || deadline == 0) {
+                deadline = System.currentTimeMillis() + flushInterval;
+            }
+        }
+    }
+
+    private void read(InputStream in) {
+        try {
+            while (true) {
+                byte[] chunk = new byte[READ_SIZE];
+                int read = in.read(chunk);
+                if (read < 0) {
+                    break;
+                }
+                if (read > 0) {
+                    chunks.put(read == chunk.length ? chunk : Arrays.copyOf(chunk, read));
+                }
+            }
+        } catch (IOException e) {
+            readFailure = e;
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        try {
+            chunks.put(EOF);
+        } catch (InterruptedException e) {
+            // nobody is waiting any more
+        }
+    }
+
+    /**
+     * @return the end of the last complete line of the unflushed data, or 0 if there is none
+     */
+    private int lineEnd() {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Append the data up to the end as one block, and keep the rest unflushed.
+     */
+    private void flush(int end) throws IOException, StorageException {
+        if (end == 0) {
+            return;
+        }
+
+        // fail if someone else appended to the blob, and never append a retried block twice
+        AccessCondition condition = new AccessCondition();
+        condition.setIfAppendPositionEqual(appended);
+        try {
+            blob.appendBlock(new ByteArrayInputStream(buffer, 0, end), end, condition, null, null);
+        } catch (StorageException e) {
+            // a retry of an append which did succeed finds the blob already past the position
+            if (e.getHttpStatusCode() != HttpURLConnection.HTTP_PRECON_FAILED || !isAppended(end)) {
+                throw e;
+            }
+        }
+        appended += end;
+
+        System.arraycopy(buffer, end, buffer, 0, length - end);
+        length -= end;
+    }
+
+    /**
+     * @return whether the blob already ends with an append of the length
+     */
+    private boolean isAppended(int end) throws StorageException {
+        blob.downloadAttributes();
+        return blob.getProperties().getLength() == appended + end;
+    }
+}
@@ -0,0 +1,145 @@
+package io.tenmax.azurekit.blob;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local record of the blocks uploaded so far. Each line holds the index of
+ * an input block, the MD5 of its data and the ids and sizes of the blocks it
+ * was uploaded as, and ends with a terminator field, so a line cut short is
+ * told apart from a block uploaded as fewer parts. The first line holds the
+ * blob and the upload parameters, and a record made for another blob or with
+ * other parameters is discarded.
+ */
+public class UploadCheckpoint implements AutoCloseable {
+    private static final String TERMINATOR = ".";
+
+    private static class Entry {
+        final String md5;
+        final List<String> ids = new ArrayList<>();
+        final List<Long> sizes = new ArrayList<>();
+
+        Entry(String md5) {
+            this.md5 = md5;
+        }
+    }
+
+    private final File file;
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final Writer writer;
+
+    public UploadCheckpoint(File file, String parameters) throws IOException {
+        this.file = file;
+
+        boolean valid = false;
+        if (file.isFile()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                valid = parameters.equals(in.readLine());
+
+                String line;
+                while (valid && (line = in.readLine()) != null) {
+                    parse(line);
+                }
+            }
+        }
+
+        writer = new FileWriter(file, valid);
+        if (valid && !endsWithNewline(file)) {
+            // end the partially written line, so the next record starts a line of its own
+            writer.write("\n");
+        }
+        if (!valid) {
+            entries.clear();
+            writer.write(parameters + "\n");
+            writer.flush();
+        }
+    }
+
+    /**
+     * Add the entry of a record line. A malformed line, e.g. one partially
+     * written by an interrupted run, is skipped.
+     */
+    private void parse(String line) {
+        String[] fields = line.trim().split(" ");
+        if (fields.length < 4 || !TERMINATOR.equals(fields[fields.length - 1])) {
+            return;
+        }
+
+        try {
+            int index = Integer.parseInt(fields[0]);
+            Entry entry = new Entry(fields[1]);
+            for (int i = 2; i < fields.length - 1; i++) {
+                int colon = fields[i].lastIndexOf(':');
+                if (colon <= 0) {
+                    return;
+                }
+                entry.ids.add(fields[i].substring(0, colon));
+                entry.sizes.add(Long.parseLong(fields[i].substring(colon + 1)));
+            }
+            entries.put(index, entry);
+        } catch (NumberFormatException e) {
+            // skip it
+        }
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() == 0) {
+                return true;
+            }
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        }
+    }
+
+    /**
+     * @param uncommitted the sizes of the uncommitted blocks on the server by block id
+     * @return the block ids of the input block if it was uploaded with the same content and
+     * the blocks are still on the server, otherwise null
+     */
+    public List<String> reusable(int index, String md5, Map<String, Long> uncommitted) {
+        Entry entry = entries.get(index);
+        if (entry == null || !entry.md5.equals(md5)) {
+            return null;
+        }
+
+        for (int i = 0; i < entry.ids.size(); i++) {
+            if (!entry.sizes.get(i).equals(uncommitted.get(entry.ids.get(i)))) {
+                return null;
+            }
+        }
+        return entry.ids;
+    }
+
+    public synchronized void record(int index, String md5, List<String> ids, List<Long> sizes) throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append(index).append(' ').append(md5);
+        for (int i = 0; i < ids.size(); i++) {
+            line.append(' ').append(ids.get(i)).append(':').append(sizes.get(i));
+        }
+
+        line.append(' ').append(TERMINATOR).append('\n');
+
+        writer.write(line.toString());
+        writer.flush();
+    }
+
+    public void delete() throws IOException {
+        close();
+        file.delete();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
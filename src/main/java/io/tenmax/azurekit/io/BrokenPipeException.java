@@ -0,0 +1,14 @@
+package io.tenmax.azurekit.io;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the reader of the output has gone away, e.g. {@code azurecat ... | head}.
+ */
+public class BrokenPipeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public BrokenPipeException(IOException cause) {
+        super(cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,93 @@
+package io.tenmax.azurekit.io;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A process wide pool of reusable transfer buffers, i.e. the download ranges,
+ * the copy buffers and the upload blocks, with a hard cap on the bytes of the
+ * pooled buffers alive. Released buffers are kept by size and handed out
+ * again; idle buffers of other sizes are dropped when a new size doesn't fit
+ * the cap any more. The cap doesn't cover the buffers outside the pool, e.g.
+ * the prefetched blobs, which have a budget of their own.
+ */
+public class BufferPool {
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static BufferPool instance = new BufferPool(DEFAULT_MAX_BYTES);
+
+    private final long maxBytes;
+    private final Map<Integer, Deque<byte[]>> free = new HashMap<>();
+    private long allocatedBytes = 0;
+
+    public BufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    public static void setMaxBytes(long maxBytes) {
+        instance = new BufferPool(maxBytes);
+    }
+
+    /**
+     * Get a buffer of the size, waiting for other buffers to be released if the cap is reached.
+     */
+    public synchronized byte[] acquire(int size) throws InterruptedException {
+        byte[] buffer;
+        while ((buffer = tryAcquire(size)) == null) {
+            wait();
+        }
+        return buffer;
+    }
+
+    /**
+     * Get a buffer of the size, or null if the cap is reached.
+     */
+    public synchronized byte[] tryAcquire(int size) {
+        if (size > maxBytes) {
+            throw new IllegalArgumentException(
+                    "A buffer of " + size + " bytes exceeds the memory limit of " + maxBytes + " bytes");
+        }
+
+        Deque<byte[]> buffers = free.get(size);
+        if (buffers != null && !buffers.isEmpty()) {
+            return buffers.pop();
+        }
+
+        if (allocatedBytes + size > maxBytes) {
+            trim();
+        }
+        if (allocatedBytes + size > maxBytes) {
+            return null;
+        }
+
+        allocatedBytes += size;
+        return new byte[size];
+    }
+
+    public synchronized void release(byte[] buffer) {
+        free.computeIfAbsent(buffer.length, k -> new ArrayDeque<>()).push(buffer);
+        notifyAll();
+    }
+
+    /**
+     * Give up a buffer which may still be in use, e.g. by a cancelled task. It
+     * no longer counts against the cap and is left to the garbage collector.
+     */
+    public synchronized void forget(byte[] buffer) {
+        allocatedBytes -= buffer.length;
+        notifyAll();
+    }
+
+    private void trim() {
+        for (Map.Entry<Integer, Deque<byte[]>> entry : free.entrySet()) {
+            allocatedBytes -= (long) entry.getKey() * entry.getValue().size();
+            entry.getValue().clear();
+        }
+    }
+}
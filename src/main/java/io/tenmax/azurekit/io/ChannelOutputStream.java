@@ -0,0 +1,131 @@
+package io.tenmax.azurekit.io;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An unsynchronized output stream which collects the writes in a direct
+ * buffer and only hands them to the channel when the buffer is full or the
+ * stream is flushed. A failed channel write marks the stream as broken and
+ * surfaces as {@link BrokenPipeException}.
+ */
+public class ChannelOutputStream extends OutputStream {
+    public static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final boolean closeChannel;
+    private boolean broken = false;
+
+    public ChannelOutputStream(WritableByteChannel channel, int bufferSize) {
+        this(channel, bufferSize, true);
+    }
+
+    private ChannelOutputStream(WritableByteChannel channel, int bufferSize, boolean closeChannel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.closeChannel = closeChannel;
+    }
+
+    /**
+     * A stream over the standard output. Closing it only flushes, so the
+     * process can keep writing to the standard output afterwards.
+     */
+    public static ChannelOutputStream stdout() {
+        return new ChannelOutputStream(new FileOutputStream(FileDescriptor.out).getChannel(), BUFFER_SIZE, false);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.capacity()) {
+            // too large to be worth copying, hand it to the channel directly
+            drain();
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void write(ByteBuffer src) throws IOException {
+        if (src.remaining() >= buffer.capacity()) {
+            drain();
+            writeFully(src);
+            return;
+        }
+
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+
+            int limit = src.limit();
+            src.limit(src.position() + Math.min(src.remaining(), buffer.remaining()));
+            buffer.put(src);
+            src.limit(limit);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!broken) {
+                drain();
+            }
+        } finally {
+            if (closeChannel) {
+                channel.close();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        try {
+            writeFully(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        if (broken) {
+            throw new BrokenPipeException(new IOException("Broken pipe"));
+        }
+
+        try {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } catch (IOException e) {
+            broken = true;
+            throw new BrokenPipeException(e);
+        }
+    }
+}
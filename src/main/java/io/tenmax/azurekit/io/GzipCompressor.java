@@ -0,0 +1,70 @@
+package io.tenmax.azurekit.io;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses independent chunks of data into gzip members. Concatenated
+ * members form a valid multi-member gzip stream, so chunks can be compressed
+ * on different threads and simply be written in order.
+ */
+public class GzipCompressor {
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    public interface Sink {
+        void write(byte[] buffer, int length) throws IOException;
+    }
+
+    /**
+     * Compress the input into one gzip member. The output buffer is handed to
+     * the sink whenever it is full and once more at the end, and is reused
+     * after the sink returns.
+     */
+    public static void compress(byte[] input, int offset, int length, byte[] output, Sink sink) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(input, offset, length);
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+
+        int position = put(HEADER, output, 0, sink);
+        while (!deflater.finished()) {
+            position += deflater.deflate(output, position, output.length - position);
+            if (position == output.length) {
+                sink.write(output, position);
+                position = 0;
+            }
+        }
+
+        long value = crc.getValue();
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (value >>> (8 * i));
+            trailer[i + 4] = (byte) (length >>> (8 * i));
+        }
+        position = put(trailer, output, position, sink);
+
+        if (position > 0) {
+            sink.write(output, position);
+        }
+    }
+
+    private static int put(byte[] bytes, byte[] output, int position, Sink sink) throws IOException {
+        for (byte b : bytes) {
+            if (position == output.length) {
+                sink.write(output, position);
+                position = 0;
+            }
+            output[position++] = b;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,272 @@
+package io.tenmax.azurekit.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decodes a multi-member gzip stream (as produced by pigz or by concatenating
+ * gzip files) by inflating the members on several threads.
+ *
+ * The compressed input is cut at every position which looks like a gzip
+ * member header. A cut inside a member makes that piece fail to inflate, in
+ * which case it is merged with the following piece and inflated again, so
+ * false positives only cost time. If no member boundary shows up within
+ * {@link #MAX_MEMBER_SIZE} bytes, e.g. for a plain single-member gzip file,
+ * or a piece still fails to inflate at that size, the rest of the stream is
+ * decoded sequentially.
+ */
+public class ParallelGzipInputStream extends InputStream {
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_MEMBER_SIZE = 64 * 1024 * 1024;
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private static class Segment {
+        final byte[] raw;
+        final Future<byte[]> inflated;
+
+        Segment(byte[] raw, Future<byte[]> inflated) {
+            this.raw = raw;
+            this.inflated = inflated;
+        }
+    }
+
+    private final InputStream in;
+    private final int parallelism;
+    private final ExecutorService executor;
+    private final Deque<Segment> pending = new ArrayDeque<>();
+
+    // the input from the last member start on, which is not submitted yet
+    private byte[] carry = new byte[0];
+    private int carryLength = 0;
+    private boolean eof = false;
+    private InputStream sequential;
+
+    private byte[] current = new byte[0];
+    private int position = 0;
+
+    public ParallelGzipInputStream(InputStream in, int parallelism) {
+        this.in = in;
+        this.parallelism = parallelism;
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "gzip-inflater");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static byte[] inflate(byte[] raw) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length * 4);
+        inflate(new ByteArrayInputStream(raw), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Inflate the gzip content into the stream, a buffer at a time.
+     */
+    public static void inflate(InputStream raw, OutputStream out) throws IOException {
+        try (InputStream gzip = new GZIPInputStream(raw, INFLATE_BUFFER_SIZE)) {
+            byte[] buffer = new byte[INFLATE_BUFFER_SIZE];
+            int read;
+            while ((read = gzip.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (position >= current.length) {
+            if (sequential != null) {
+                return sequential.read(b, off, len);
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+        }
+
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    private boolean nextChunk() throws IOException {
+        while (true) {
+            fill();
+
+            Segment segment = pending.poll();
+            if (segment == null) {
+                if (carryLength == 0) {
+                    return false;
+                }
+
+                // no member boundary found in a long run, decode the remaining stream by itself
+                decodeSequentially(new byte[0]);
+                return true;
+            }
+
+            try {
+                current = segment.inflated.get();
+                position = 0;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                Segment next = pending.peek();
+                if (next == null && eof && carryLength == 0) {
+                    throw new IOException("Invalid gzip stream", e.getCause());
+                }
+
+                long merged = (long) segment.raw.length + (next != null ? next.raw.length : carryLength);
+                if (merged > MAX_MEMBER_SIZE) {
+                    // a corrupt member, or one too long to find, fails the sequential decoding by itself
+                    decodeSequentially(segment.raw);
+                    return true;
+                }
+
+                if (next != null) {
+                    pending.poll();
+                    pending.addFirst(submit(concat(segment.raw, next.raw)));
+                } else {
+                    carry = concat(segment.raw, Arrays.copyOf(carry, carryLength));
+                    carryLength = carry.length;
+                }
+            }
+        }
+    }
+
+    private void fill() throws IOException {
+        while (pending.size() < parallelism && !eof && carryLength <= MAX_MEMBER_SIZE) {
+            readWindow();
+        }
+
+        if (eof && carryLength > 0 && pending.isEmpty()) {
+            submitCarry();
+        }
+    }
+
+    /**
+     * Read a window onto the carried input, and submit the members which start in it.
+     */
+    private void readWindow() throws IOException {
+        if (carry.length < carryLength + WINDOW_SIZE) {
+            // grow by doubling, so a long member is copied a few times instead of once per window
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + WINDOW_SIZE));
+        }
+
+        int scanned = carryLength;
+        int length = carryLength;
+        while (length < carryLength + WINDOW_SIZE) {
+            int read = in.read(carry, length, carryLength + WINDOW_SIZE - length);
+            if (read < 0) {
+                eof = true;
+                break;
+            }
+            length += read;
+        }
+
+        // the carried input was searched already, except for a header cut by the end of the last window
+        int start = 0;
+        for (int next : findMemberStarts(carry, Math.max(1, scanned - 3), length)) {
+            pending.add(submit(Arrays.copyOfRange(carry, start, next)));
+            start = next;
+        }
+
+        System.arraycopy(carry, start, carry, 0, length - start);
+        carryLength = length - start;
+        if (eof && carryLength > 0) {
+            submitCarry();
+        }
+    }
+
+    private void submitCarry() {
+        pending.add(submit(Arrays.copyOf(carry, carryLength)));
+        carry = new byte[0];
+        carryLength = 0;
+    }
+
+    /**
+     * Decode the rest of the stream on the calling thread, from the given input on.
+     */
+    private void decodeSequentially(byte[] head) throws IOException {
+        List<InputStream> rest = new ArrayList<>();
+        rest.add(new ByteArrayInputStream(head));
+        for (Segment segment : pending) {
+            segment.inflated.cancel(true);
+            rest.add(new ByteArrayInputStream(segment.raw));
+        }
+        pending.clear();
+        rest.add(new ByteArrayInputStream(carry, 0, carryLength));
+        rest.add(in);
+
+        sequential = new GZIPInputStream(new SequenceInputStream(Collections.enumeration(rest)), INFLATE_BUFFER_SIZE);
+        carry = new byte[0];
+        carryLength = 0;
+    }
+
+    /**
+     * @return the positions from the given one on which look like the start of a gzip member
+     */
+    private static List<Integer> findMemberStarts(byte[] data, int from, int length) {
+        List<Integer> starts = new ArrayList<>();
+
+        // magic, deflate method and no reserved flag bits
+        for (int i = from; i + 3 < length; i++) {
+            if (data[i] == (byte) 0x1f &&
+                    data[i + 1] == (byte) 0x8b &&
+                    data[i + 2] == 8 &&
+                    (data[i + 3] & 0xe0) == 0) {
+                starts.add(i);
+            }
+        }
+        return starts;
+    }
+
+    private Segment submit(byte[] raw) {
+        return new Segment(raw, executor.submit(() -> inflate(raw)));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Segment segment : pending) {
+            segment.inflated.cancel(true);
+        }
+        pending.clear();
+        executor.shutdownNow();
+
+        if (sequential != null) {
+            sequential.close();
+        } else {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package io.tenmax.azurekit.table;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * A local record of the progress of an export. Each line holds the number of
+ * rows and bytes output so far and the continuation of the next page, except
+ * the line of the columns of the header, which is written before the first
+ * page, so a resumed export writes its rows in the same columns. Every line
+ * ends with a terminator field, so a line cut short by an interrupted run is
+ * never trusted. The first line holds the export parameters, and a record
+ * made with other parameters is discarded.
+ */
+public class ExportCheckpoint implements AutoCloseable {
+    private static final String TERMINATOR = ".";
+    private static final String HEADER = "columns";
+
+    private final File file;
+    private final Writer writer;
+
+    private String[] header = null;
+    private ResultContinuation token = null;
+    private long rows = 0;
+    private long bytes = 0;
+
+    public ExportCheckpoint(File file, String parameters) throws IOException {
+        this.file = file;
+
+        boolean valid = false;
+        if (file.isFile()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                valid = parameters.equals(in.readLine());
+
+                String line;
+                while (valid && (line = in.readLine()) != null) {
+                    parse(line);
+                }
+            }
+        }
+
+        writer = new FileWriter(file, valid);
+        if (valid && !endsWithNewline(file)) {
+            // end the partially written line, so the next record starts a line of its own
+            writer.write("\n");
+        }
+        if (!valid) {
+            writer.write(parameters + "\n");
+            writer.flush();
+        }
+    }
+
+    /**
+     * Take the progress of a record line. A line which is cut short or
+     * otherwise malformed is skipped.
+     */
+    private void parse(String line) {
+        String[] fields = line.split(" ", -1);
+        if (fields.length < 2 || !TERMINATOR.equals(fields[fields.length - 1])) {
+            return;
+        }
+
+        if (HEADER.equals(fields[0])) {
+            try {
+                String[] header = new String[fields.length - 2];
+                for (int i = 0; i < header.length; i++) {
+                    header[i] = URLDecoder.decode(fields[i + 1], "utf-8");
+                }
+                this.header = header;
+            } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                // skip it
+            }
+            return;
+        }
+
+        if (fields.length != 5) {
+            return;
+        }
+
+        try {
+            long rows = Long.parseLong(fields[0]);
+            long bytes = Long.parseLong(fields[1]);
+            ResultContinuation token = new ResultContinuation();
+            token.setContinuationType(ResultContinuationType.TABLE);
+            token.setNextPartitionKey(decode(fields[2]));
+            token.setNextRowKey(decode(fields[3]));
+
+            this.rows = rows;
+            this.bytes = bytes;
+            this.token = token;
+        } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+            // skip it
+        }
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() == 0) {
+                return true;
+            }
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        }
+    }
+
+    /**
+     * @return the columns of the header of the recorded pages, or null if none is recorded
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    /**
+     * Record the columns of the header, before the first page.
+     */
+    public void recordHeader(String[] header) throws IOException {
+        this.header = header;
+
+        StringBuilder line = new StringBuilder(HEADER);
+        for (String column : header) {
+            line.append(' ').append(URLEncoder.encode(column, "utf-8"));
+        }
+        writer.write(line.append(' ').append(TERMINATOR).append('\n').toString());
+        writer.flush();
+    }
+
+    /**
+     * @return the continuation of the page after the recorded ones, or null if nothing is recorded
+     */
+    public ResultContinuation getToken() {
+        return token;
+    }
+
+    /**
+     * @return the number of rows output by the recorded pages
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of bytes output by the recorded pages
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Record a page whose rows are all output.
+     *
+     * @param token the continuation of the next page
+     * @param rows  the number of rows of the page
+     * @param bytes the number of bytes of the page
+     */
+    public void record(ResultContinuation token, long rows, long bytes) throws IOException {
+        this.token = token;
+        this.rows += rows;
+        this.bytes += bytes;
+
+        writer.write(this.rows + " " + this.bytes + " " +
+                encode(token.getNextPartitionKey()) + " " + encode(token.getNextRowKey()) + " " + TERMINATOR + "\n");
+        writer.flush();
+    }
+
+    public void delete() throws IOException {
+        close();
+        file.delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static String encode(String key) throws UnsupportedEncodingException {
+        return key == null ? "" : URLEncoder.encode(key, "utf-8");
+    }
+
+    private static String decode(String field) throws UnsupportedEncodingException {
+        return field.isEmpty() ? null : URLDecoder.decode(field, "utf-8");
+    }
+}
@@ -0,0 +1,344 @@
+package io.tenmax.azurekit.table;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.TableQuery;
+import io.tenmax.azurekit.table.format.Format;
+import org.apache.commons.io.output.StringBuilderWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports the partition ranges of a table with concurrent queries.
+ *
+ * In order, the first range is written to the output while the later ones
+ * are spooled to temporary files, which are copied to the output in the
+ * order of the keys as soon as the ranges before them are done, and deleted.
+ * At most two ranges per worker are spooled ahead of the output, so the
+ * files hold a few ranges instead of the whole table. Unordered,
+ * every page of every range is written as soon as it is formatted. Every
+ * range fetches its next page while it writes the current one. All the
+ * ranges write their rows in the columns of one header, which is the given
+ * columns or those of the first entity of the first non-empty range.
+ */
+public class ParallelExport implements AutoCloseable {
+    private static final int WRITER_BUFFER_SIZE = 64 * 1024;
+
+    private static class Part {
+        final File file;
+        final boolean rows;
+
+        Part(File file, boolean rows) {
+            this.file = file;
+            this.rows = rows;
+        }
+    }
+
+    private final CloudTable table;
+    private final Format format;
+    private final ExecutorService executor;
+    private final ExecutorService fetchers;
+    private final int workers;
+
+    private String filter = "";
+    private String[] columns = null;
+    private int takeCount = 1000;
+    private boolean ordered = true;
+    private Watermark watermark = null;
+
+    // the header is printed once, before the first row of any range
+    private String[] header = null;
+    private boolean headerPrinted = false;
+
+    public ParallelExport(CloudTable table, Format format, int workers) {
+        this.table = table;
+        this.format = format;
+        this.workers = workers;
+        this.executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "range-exporter");
+            t.setDaemon(true);
+            return t;
+        });
+        this.fetchers = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "segment-prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    public void setColumns(String[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @param takeCount the number of entities of a page
+     */
+    public void setTakeCount(int takeCount) {
+        this.takeCount = takeCount;
+    }
+
+    /**
+     * Write the rows in the order of the keys. Otherwise the ranges are interleaved.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Raise the watermark to the latest Timestamp of the exported entities.
+     */
+    public void setWatermark(Watermark watermark) {
+        this.watermark = watermark;
+    }
+
+    /**
+     * Find the split points of the given number of ranges, or of fewer if the keys are not diverse enough.
+     */
+    public List<String> sample(int ranges) throws StorageException, InterruptedException {
+        return new PartitionSampler(table, executor).sample(ranges);
+    }
+
+    public void dump(List<PartitionRange> ranges, boolean printHeader, OutputStream os)
+            throws IOException, StorageException, InterruptedException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), WRITER_BUFFER_SIZE);
+        header = columns != null ? columns : firstColumns(ranges);
+        headerPrinted = false;
+
+        if (ordered) {
+            dumpOrdered(ranges, printHeader, out, os);
+        } else {
+            dumpUnordered(ranges, printHeader, out);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        fetchers.shutdownNow();
+    }
+
+    private void dumpOrdered(List<PartitionRange> ranges, boolean printHeader, Writer out, OutputStream os)
+            throws IOException, StorageException, InterruptedException {
+        List<Future<Part>> parts = new ArrayList<>(ranges.size());
+        int merged = 0;
+        try {
+            for (; merged < ranges.size(); merged++) {
+                while (parts.size() < ranges.size() && parts.size() < merged + 2 * workers) {
+                    PartitionRange range = ranges.get(parts.size());
+                    if (parts.isEmpty()) {
+                        parts.add(executor.submit(() -> new Part(null, write(range, printHeader, out))));
+                    } else {
+                        parts.add(executor.submit(() -> spool(range)));
+                    }
+                }
+
+                Part part = get(parts.get(merged));
+                if (part.file == null) {
+                    headerPrinted = part.rows;
+                    continue;
+                }
+
+                try {
+                    if (!headerPrinted && part.rows) {
+                        format.printer(out).head(header(null), printHeader);
+                        headerPrinted = true;
+                    }
+                    out.flush();
+                    Files.copy(part.file.toPath(), os);
+                } finally {
+                    part.file.delete();
+                }
+            }
+        } finally {
+            // remove the spools of the ranges which are not merged
+            for (int i = merged + 1; i < parts.size(); i++) {
+                Future<Part> part = parts.get(i);
+                if (!part.cancel(true)) {
+                    try {
+                        part.get().file.delete();
+                    } catch (ExecutionException e) {
+                        // the range removed its own spool
+                    }
+                }
+            }
+        }
+    }
+
+    private Part spool(PartitionRange range) throws Exception {
+        // deleted once merged, not on exit, as azurekit runs many exports in one process
+        File file = File.createTempFile("azurekit-", ".part");
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8), WRITER_BUFFER_SIZE)) {
+            return new Part(file, write(range, false, out));
+        } catch (Exception e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the columns of the first entity of the first non-empty range, or null if all the ranges are empty
+     */
+    private String[] firstColumns(List<PartitionRange> ranges) throws StorageException {
+        for (PartitionRange range : ranges) {
+            TableQuery<DynamicTableEntity> query = query(range);
+            query.setTakeCount(1);
+
+            // the service may return an empty page with a continuation
+            ResultContinuation token = null;
+            do {
+                ResultSegment<DynamicTableEntity> segment = table.executeSegmented(query, token);
+                if (!segment.getResults().isEmpty()) {
+                    return Format.columns(segment.getResults().get(0));
+                }
+                token = segment.getContinuationToken();
+            } while (token != null);
+        }
+        return null;
+    }
+
+    /**
+     * @param entity an entity to take the columns from if the ranges were empty
+     *               when the header was chosen, as it was written since
+     * @return the header shared by all the ranges
+     */
+    private synchronized String[] header(DynamicTableEntity entity) {
+        if (header == null && entity != null) {
+            header = Format.columns(entity);
+        }
+        return header;
+    }
+
+    /**
+     * Write the rows of the range, with the header before the first row if it should be printed.
+     *
+     * @return whether the range has rows
+     */
+    private boolean write(PartitionRange range, boolean printHeader, Writer out)
+            throws IOException, StorageException, InterruptedException {
+        Format.Printer printer = format.printer(out);
+        String[] header = null;
+
+        SegmentPrefetcher segments = new SegmentPrefetcher(table, query(range), null, fetchers);
+        ResultSegment<DynamicTableEntity> segment;
+        while ((segment = segments.next()) != null) {
+            for (DynamicTableEntity entity : segment.getResults()) {
+                if (header == null) {
+                    header = header(entity);
+                    printer.head(header, printHeader);
+                }
+
+                printer.write(entity, header);
+            }
+            if (watermark != null) {
+                watermark.update(segment.getResults());
+            }
+        }
+
+        return header != null;
+    }
+
+    private void dumpUnordered(List<PartitionRange> ranges, boolean printHeader, Writer out)
+            throws IOException, StorageException, InterruptedException {
+        List<Future<Void>> futures = new ArrayList<>(ranges.size());
+        for (PartitionRange range : ranges) {
+            futures.add(executor.submit(() -> {
+                writePages(range, printHeader, out);
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<Void> future : futures) {
+                get(future);
+            }
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Format every page of the range and write it as a whole, shared with the other ranges.
+     */
+    private void writePages(PartitionRange range, boolean printHeader, Writer out)
+            throws IOException, StorageException, InterruptedException {
+        StringBuilderWriter page = new StringBuilderWriter();
+        Format.Printer printer = format.printer(page);
+        String[] header = null;
+
+        SegmentPrefetcher segments = new SegmentPrefetcher(table, query(range), null, fetchers);
+        ResultSegment<DynamicTableEntity> segment;
+        while ((segment = segments.next()) != null) {
+            if (watermark != null) {
+                watermark.update(segment.getResults());
+            }
+
+            page.getBuilder().setLength(0);
+            for (DynamicTableEntity entity : segment.getResults()) {
+                if (header == null) {
+                    header = header(entity);
+                }
+                printer.write(entity, header);
+            }
+
+            if (header != null && page.getBuilder().length() > 0) {
+                synchronized (out) {
+                    if (!headerPrinted) {
+                        format.printer(out).head(header, printHeader);
+                        headerPrinted = true;
+                    }
+                    out.append(page.getBuilder());
+                }
+            }
+        }
+    }
+
+    private TableQuery<DynamicTableEntity> query(PartitionRange range) {
+        TableQuery<DynamicTableEntity> query = new TableQuery<>();
+        query.setClazzType(DynamicTableEntity.class);
+
+        String rangeFilter = range.filter(filter);
+        if (!rangeFilter.isEmpty()) {
+            query.setFilterString(rangeFilter);
+        }
+
+        query.setColumns(columns);
+        query.setTakeCount(takeCount);
+        return query;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, StorageException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
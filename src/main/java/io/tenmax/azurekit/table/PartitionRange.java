@@ -0,0 +1,73 @@
+package io.tenmax.azurekit.table;
+
+import com.microsoft.azure.storage.table.TableQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of partition keys from the lower key, inclusive, to the upper key,
+ * exclusive. A missing bound is unbounded.
+ */
+public class PartitionRange {
+    static final String PARTITION_KEY = "PartitionKey";
+
+    private final String lower;
+    private final String upper;
+
+    public PartitionRange(String lower, String upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * Cut the whole key space at the sorted split points.
+     */
+    public static List<PartitionRange> split(List<String> points) {
+        List<PartitionRange> ranges = new ArrayList<>(points.size() + 1);
+        String lower = null;
+        for (String point : points) {
+            ranges.add(new PartitionRange(lower, point));
+            lower = point;
+        }
+        ranges.add(new PartitionRange(lower, null));
+        return ranges;
+    }
+
+    /**
+     * @param shard the shard, counted from 0
+     * @return the ranges of the shard, a contiguous part of the ranges
+     */
+    public static List<PartitionRange> shard(List<PartitionRange> ranges, int shard, int shards) {
+        if (shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("The shard must be between 0 and " + (shards - 1));
+        }
+        return ranges.subList(ranges.size() * shard / shards, ranges.size() * (shard + 1) / shards);
+    }
+
+    /**
+     * @return the filter of the range combined with the filter of the query, which may be empty
+     */
+    public String filter(String filter) {
+        String range = null;
+        if (lower != null) {
+            range = TableQuery.generateFilterCondition(
+                    PARTITION_KEY, TableQuery.QueryComparisons.GREATER_THAN_OR_EQUAL, lower);
+        }
+        if (upper != null) {
+            String condition = TableQuery.generateFilterCondition(
+                    PARTITION_KEY, TableQuery.QueryComparisons.LESS_THAN, upper);
+            range = range == null ? condition : TableQuery.combineFilters(range, TableQuery.Operators.AND, condition);
+        }
+
+        if (range == null) {
+            return filter;
+        }
+        return filter.isEmpty() ? range : TableQuery.combineFilters(filter, TableQuery.Operators.AND, range);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + (lower == null ? "" : lower) + ", " + (upper == null ? "" : upper) + ")";
+    }
+}
@@ -0,0 +1,155 @@
+package io.tenmax.azurekit.table;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.TableQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds split points of the partition keys of a table without reading it.
+ * Every probe is a query for the first partition key from a start key, so
+ * the distinct prefixes of the keys are found with one probe each. The
+ * prefixes get longer, one character a round, until there are enough of them
+ * or every prefix is a whole key. A round which doesn't add prefixes, e.g.
+ * while all the keys share a common prefix, just descends a level.
+ */
+public class PartitionSampler {
+    private static class Prefix {
+        final String value;
+        // a whole partition key, which has no longer prefixes to probe for
+        final boolean key;
+
+        Prefix(String value, boolean key) {
+            this.value = value;
+            this.key = key;
+        }
+    }
+
+    private final CloudTable table;
+    private final ExecutorService executor;
+
+    public PartitionSampler(CloudTable table, ExecutorService executor) {
+        this.table = table;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the sorted split points of the given number of ranges, or of fewer if the keys are not diverse enough
+     */
+    public List<String> sample(int ranges) throws StorageException, InterruptedException {
+        List<Prefix> prefixes = Collections.singletonList(new Prefix("", false));
+        while (prefixes.size() < ranges) {
+            List<Future<List<Prefix>>> futures = new ArrayList<>(prefixes.size());
+            boolean descended = false;
+            for (Prefix prefix : prefixes) {
+                if (prefix.key) {
+                    futures.add(CompletableFuture.completedFuture(Collections.singletonList(prefix)));
+                } else {
+                    futures.add(executor.submit(() -> children(prefix.value)));
+                    descended = true;
+                }
+            }
+            if (!descended) {
+                // every prefix is a whole key
+                break;
+            }
+
+            List<Prefix> next = new ArrayList<>();
+            for (Future<List<Prefix>> future : futures) {
+                try {
+                    next.addAll(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof StorageException) {
+                        throw (StorageException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            prefixes = next;
+        }
+
+        // the first range starts from the lowest key, and the others at evenly picked prefixes
+        int count = Math.min(ranges, prefixes.size());
+        List<String> points = new ArrayList<>(Math.max(count - 1, 0));
+        for (int i = 1; i < count; i++) {
+            points.add(prefixes.get((int) ((long) i * prefixes.size() / count)).value);
+        }
+        return points;
+    }
+
+    /**
+     * @return the sorted prefixes one character longer than the prefix, and the prefix itself for a key equal to it
+     */
+    private List<Prefix> children(String prefix) throws StorageException {
+        List<Prefix> children = new ArrayList<>();
+        String upper = prefix.isEmpty() ? null : successor(prefix);
+
+        String start = prefix;
+        while (start != null) {
+            String key = first(start, upper);
+            if (key == null) {
+                break;
+            }
+
+            if (key.length() == prefix.length()) {
+                children.add(new Prefix(key, true));
+                // the lowest key after it, control characters are not allowed in keys
+                start = key + " ";
+            } else {
+                int end = prefix.length() + (Character.isHighSurrogate(key.charAt(prefix.length())) ? 2 : 1);
+                String child = key.substring(0, Math.min(end, key.length()));
+                children.add(new Prefix(child, false));
+                start = successor(child);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @return the first partition key from the start key, inclusive, to the upper key, exclusive
+     */
+    private String first(String start, String upper) throws StorageException {
+        String filter = new PartitionRange(start, upper).filter("");
+
+        TableQuery<DynamicTableEntity> query = new TableQuery<>();
+        query.setClazzType(DynamicTableEntity.class);
+        query.setFilterString(filter);
+        query.setColumns(new String[]{PartitionRange.PARTITION_KEY});
+        query.setTakeCount(1);
+
+        // the service may return an empty page with a continuation
+        ResultContinuation token = null;
+        do {
+            ResultSegment<DynamicTableEntity> segment = table.executeSegmented(query, token);
+            if (!segment.getResults().isEmpty()) {
+                return segment.getResults().get(0).getPartitionKey();
+            }
+            token = segment.getContinuationToken();
+        } while (token != null);
+
+        return null;
+    }
+
+    /**
+     * @return the lowest string greater than all the strings with the prefix, or null if there is none
+     */
+    private static String successor(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+}
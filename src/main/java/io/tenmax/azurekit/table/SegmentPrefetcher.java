@@ -0,0 +1,63 @@
+package io.tenmax.azurekit.table;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.TableQuery;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the pages of a query one ahead. The request of the next page is sent
+ * as soon as a page is handed out, so it is on the way while the page is
+ * formatted.
+ */
+public class SegmentPrefetcher {
+    private final CloudTable table;
+    private final TableQuery<DynamicTableEntity> query;
+    private final ExecutorService executor;
+    private Future<ResultSegment<DynamicTableEntity>> next;
+
+    /**
+     * @param token the continuation of the first page, or null to start from the beginning
+     */
+    public SegmentPrefetcher(CloudTable table, TableQuery<DynamicTableEntity> query, ResultContinuation token,
+                             ExecutorService executor) {
+        this.table = table;
+        this.query = query;
+        this.executor = executor;
+        this.next = fetch(token);
+    }
+
+    /**
+     * @return the next page, or null after the last one
+     */
+    public ResultSegment<DynamicTableEntity> next() throws StorageException, InterruptedException {
+        if (next == null) {
+            return null;
+        }
+
+        ResultSegment<DynamicTableEntity> segment;
+        try {
+            segment = next.get();
+        } catch (ExecutionException e) {
+            next = null;
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        ResultContinuation token = segment.getContinuationToken();
+        next = token == null ? null : fetch(token);
+        return segment;
+    }
+
+    private Future<ResultSegment<DynamicTableEntity>> fetch(ResultContinuation token) {
+        return executor.submit(() -> table.executeSegmented(query, token));
+    }
+}
@@ -0,0 +1,98 @@
+package io.tenmax.azurekit.table;
+
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableServiceEntity;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latest Timestamp of the exported entities, kept in a state file from
+ * one export to the next, so the next export only selects the entities
+ * changed since. The state is only saved once an export is complete.
+ */
+public class Watermark {
+    private final File file;
+    private final long previous;
+    private final AtomicLong latest = new AtomicLong(Long.MIN_VALUE);
+
+    public Watermark(File file) throws IOException {
+        this.file = file;
+
+        long previous = Long.MIN_VALUE;
+        if (file.isFile()) {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            if (!lines.isEmpty()) {
+                try {
+                    previous = format().parse(lines.get(0).trim()).getTime();
+                } catch (ParseException e) {
+                    throw new IOException("Invalid state file " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        this.previous = previous;
+    }
+
+    /**
+     * @param overlap the milliseconds before the watermark to select too, for the entities
+     *                which were written with an earlier Timestamp while the last export ran
+     * @return the filter combined with the condition of the entities changed since the watermark.
+     * The filter is unchanged on the first export.
+     */
+    public String filter(String filter, long overlap) {
+        if (previous == Long.MIN_VALUE) {
+            return filter;
+        }
+
+        String since = TableQuery.generateFilterCondition("Timestamp",
+                TableQuery.QueryComparisons.GREATER_THAN_OR_EQUAL, new Date(previous - overlap));
+        return filter.isEmpty() ? since : TableQuery.combineFilters(filter, TableQuery.Operators.AND, since);
+    }
+
+    /**
+     * Raise the watermark to the latest Timestamp of the exported entities.
+     */
+    public void update(List<? extends TableServiceEntity> entities) {
+        long max = Long.MIN_VALUE;
+        for (TableServiceEntity entity : entities) {
+            if (entity.getTimestamp() != null) {
+                max = Math.max(max, entity.getTimestamp().getTime());
+            }
+        }
+
+        latest.accumulateAndGet(max, Math::max);
+    }
+
+    /**
+     * Save the watermark for the next export. It is never moved back.
+     */
+    public void save() throws IOException {
+        long watermark = Math.max(previous, latest.get());
+        if (watermark == Long.MIN_VALUE) {
+            // nothing was ever exported
+            return;
+        }
+
+        // replace the state at once, so it is never half written
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), Collections.singletonList(format().format(new Date(watermark))),
+                StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static SimpleDateFormat format() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+}
@@ -6,44 +6,33 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.Arrays;
-import java.util.List;
+import java.io.Writer;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 public class CsvFormat extends Format {
 
     @Override
-    public void head(String[] columns, boolean printHeader, PrintStream out) {
-        // Print the header
-        if (printHeader) {
-            List<String> list = Arrays.asList(columns).stream()
-                    .collect(Collectors.toList());
+    public Printer printer(Writer out) throws IOException {
+        CSVPrinter csv = new CSVPrinter(out, CSVFormat.DEFAULT.withRecordSeparator(lineSeparator));
 
-            try {
-                CSVPrinter print = CSVFormat.DEFAULT
-                        .withHeader(list.toArray(new String[]{}))
-                        .print(out);
-                print.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        return new Printer() {
+            @Override
+            public void head(String[] columns, boolean printHeader) throws IOException {
+                // Print the header
+                if (printHeader) {
+                    csv.printRecord((Object[]) columns);
+                }
             }
-        }
-    }
 
-    @Override
-    public String map(DynamicTableEntity dynamicTableEntity) {
-        StringBuffer stringBuffer = new StringBuffer();
-        try {
-            CSVPrinter csvPrinter = new CSVPrinter(stringBuffer, CSVFormat.DEFAULT);
-            for (Map.Entry<String, EntityProperty> entry : dynamicTableEntity.getProperties().entrySet()) {
-                csvPrinter.print(entry.getValue().getValueAsString());
+            @Override
+            public void write(DynamicTableEntity dynamicTableEntity, String[] columns) throws IOException {
+                Map<String, EntityProperty> properties = dynamicTableEntity.getProperties();
+                for (String column : columns) {
+                    EntityProperty property = properties.get(column);
+                    csv.print(property == null ? null : property.getValueAsString());
+                }
+                csv.println();
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-
-        return stringBuffer.toString();
+        };
     }
 }
@@ -1,50 +1,278 @@
 package io.tenmax.azurekit.table.format;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.table.*;
+import io.tenmax.azurekit.azure.AccountUtils;
+import io.tenmax.azurekit.table.ExportCheckpoint;
+import io.tenmax.azurekit.table.SegmentPrefetcher;
+import io.tenmax.azurekit.table.Watermark;
+import org.apache.commons.io.output.CountingOutputStream;
 
-import java.io.PrintStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class Format {
-    public abstract void head(String[] columns, boolean printHeader, PrintStream out);
+    private static final int WRITER_BUFFER_SIZE = 64 * 1024;
 
-    public abstract String map(DynamicTableEntity dynamicTableEntity);
+    protected final String lineSeparator = System.lineSeparator();
+
+    private int formatters = 1;
+    private Watermark watermark = null;
+
+    /**
+     * Writes the lines of one output, escaped straight into its writer.
+     */
+    public interface Printer {
+        void head(String[] columns, boolean printHeader) throws IOException;
+
+        /**
+         * Write the entity as a line.
+         *
+         * @param columns the columns of the head, in the order the values are written
+         */
+        void write(DynamicTableEntity dynamicTableEntity, String[] columns) throws IOException;
+    }
+
+    /**
+     * @return the printer of the output, made once for all its lines and used by one thread at a time
+     */
+    public abstract Printer printer(Writer out) throws IOException;
+
+    /**
+     * @return the columns of the entity, in the order of its properties
+     */
+    public static String[] columns(DynamicTableEntity dynamicTableEntity) {
+        Map<String, EntityProperty> map = dynamicTableEntity.getProperties();
+        return map.keySet().toArray(new String[map.size()]);
+    }
+
+    /**
+     * Format the pages on a pool of threads, each page into its own buffer,
+     * which are written in the order of the pages.
+     */
+    public void setFormatters(int formatters) {
+        this.formatters = formatters;
+    }
+
+    /**
+     * Raise the watermark to the latest Timestamp of the dumped entities.
+     */
+    public void setWatermark(Watermark watermark) {
+        this.watermark = watermark;
+    }
+
+    /**
+     * Dump the table page by page, with the next page fetched while the current one is written.
+     *
+     * @param checkpoint the record of the written pages, which is resumed from, or null
+     */
+    public void dump(CloudStorageAccount account, URI tableUri, String filterString, boolean printHeader, String[] columns, int takeCount,
+                     OutputStream os, ExportCheckpoint checkpoint)
+            throws IOException, StorageException, URISyntaxException, InterruptedException {
+        CountingOutputStream counter = new CountingOutputStream(os);
+        Writer out = new BufferedWriter(new OutputStreamWriter(counter, StandardCharsets.UTF_8), WRITER_BUFFER_SIZE);
+
+        CloudTableClient tableClient = AccountUtils.getTableClient(account);
+        String tableName = tableUri.getPath().substring(1);
+        CloudTable cloudTable = tableClient.getTableReference(tableName);
+
+        TableQuery<DynamicTableEntity> tb = new TableQuery<>();
+        tb.setClazzType(DynamicTableEntity.class);
+        if(!filterString.isEmpty()) {
+            tb.setFilterString(filterString);
+        }
+
+        tb.setColumns(columns);
+        tb.setTakeCount(takeCount);
+
+        ResultContinuation token = checkpoint == null ? null : checkpoint.getToken();
+        ExecutorService fetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "segment-prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
 
-    public void dump(CloudStorageAccount account, URI tableUri, String filterString, boolean printHeader, String[] columns, int takeCount, PrintStream os) {
         try {
-            PrintStream out = System.out;
+            Printer printer = printer(out);
+
+            // Query
+            SegmentPrefetcher segments = new SegmentPrefetcher(cloudTable, tb, token, fetcher);
+            // the header is output before the recorded rows, and the resumed rows keep its columns
+            boolean resumed = checkpoint != null && checkpoint.getRows() > 0;
+            String[] header = resumed && checkpoint.getHeader() != null ? checkpoint.getHeader() : columns;
+            if (formatters > 1) {
+                dumpPages(segments, header, printHeader && !resumed, os, checkpoint);
+                return;
+            }
+
+            boolean headed = false;
+            long recorded = 0;
+
+            ResultSegment<DynamicTableEntity> segment;
+            while ((segment = segments.next()) != null) {
+                for (DynamicTableEntity dynamicTableEntity : segment.getResults()) {
+                    // Get the result set definitions.
+                    if (!headed) {
+                        header = header(header, dynamicTableEntity, checkpoint);
+                        printer.head(header, printHeader && !resumed);
+                        headed = true;
+                    }
 
-            CloudTableClient tableClient = account.createCloudTableClient();
-            String tableName = tableUri.getPath().substring(1);
-            CloudTable cloudTable = tableClient.getTableReference(tableName);
+                    printer.write(dynamicTableEntity, header);
+                }
+                if (watermark != null) {
+                    watermark.update(segment.getResults());
+                }
 
-            TableQuery<DynamicTableEntity> tb = new TableQuery<>();
-            tb.setClazzType(DynamicTableEntity.class);
-            if(!filterString.isEmpty()) {
-                tb.setFilterString(filterString);
+                if (checkpoint != null && segment.getContinuationToken() != null) {
+                    out.flush();
+                    checkpoint.record(segment.getContinuationToken(), segment.getResults().size(),
+                            counter.getByteCount() - recorded);
+                    recorded = counter.getByteCount();
+                }
             }
 
-            tb.setColumns(columns);
-            tb.setTakeCount(takeCount);
+            out.flush();
+        } catch (StorageException | InterruptedException e) {
+            // keep the rows written before the failure
+            out.flush();
+            throw e;
+        } finally {
+            fetcher.shutdownNow();
+        }
+    }
 
-            // Query
-            boolean isFirstCQL = true;
-            for (DynamicTableEntity dynamicTableEntity : cloudTable.execute(tb)) {
-                // Get the result set definitions.
-                if (isFirstCQL) {
-                    Map<String, EntityProperty> map = dynamicTableEntity.getProperties();
-                    head(map.keySet().toArray(new String[map.size()]), printHeader, out);
-                    isFirstCQL = false;
+    /**
+     * @param header the columns given or resumed, or null to take the columns of the first entity
+     * @return the header, which is recorded in the checkpoint unless it is already
+     */
+    private static String[] header(String[] header, DynamicTableEntity first, ExportCheckpoint checkpoint)
+            throws IOException {
+        if (header == null) {
+            header = columns(first);
+        }
+        if (checkpoint != null && checkpoint.getHeader() == null) {
+            checkpoint.recordHeader(header);
+        }
+        return header;
+    }
+
+    private static class Page {
+        final ByteArrayOutputStream buffer;
+        final ResultSegment<DynamicTableEntity> segment;
+
+        Page(ByteArrayOutputStream buffer, ResultSegment<DynamicTableEntity> segment) {
+            this.buffer = buffer;
+            this.segment = segment;
+        }
+    }
+
+    private void dumpPages(SegmentPrefetcher segments, String[] header, boolean printHeader, OutputStream os,
+                           ExportCheckpoint checkpoint)
+            throws IOException, StorageException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(formatters, r -> {
+            Thread t = new Thread(r, "page-formatter");
+            t.setDaemon(true);
+            return t;
+        });
+        // the buffers of the written pages, reused by the next ones
+        Queue<ByteArrayOutputStream> buffers = new ConcurrentLinkedQueue<>();
+        Deque<Future<Page>> pending = new ArrayDeque<>();
+
+        try {
+            boolean headed = false;
+            ResultSegment<DynamicTableEntity> segment;
+            while ((segment = segments.next()) != null) {
+                if (watermark != null) {
+                    watermark.update(segment.getResults());
+                }
+
+                boolean head = false;
+                if (!headed && !segment.getResults().isEmpty()) {
+                    header = header(header, segment.getResults().get(0), checkpoint);
+                    head = printHeader;
+                    headed = true;
                 }
 
-                os.println(map(dynamicTableEntity));
+                ResultSegment<DynamicTableEntity> page = segment;
+                String[] columns = headed ? header : null;
+                boolean printHead = head;
+                pending.add(executor.submit(() -> format(page, columns, printHead, buffers)));
+
+                // keep every formatter busy while the oldest page is written
+                if (pending.size() > formatters * 2) {
+                    writePage(pending.poll(), os, checkpoint, buffers);
+                }
             }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+            while (!pending.isEmpty()) {
+                writePage(pending.poll(), os, checkpoint, buffers);
+            }
+            os.flush();
+        } finally {
+            executor.shutdownNow();
         }
     }
+
+    private Page format(ResultSegment<DynamicTableEntity> segment, String[] header, boolean printHeader,
+                        Queue<ByteArrayOutputStream> buffers) throws IOException {
+        ByteArrayOutputStream buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new ByteArrayOutputStream(WRITER_BUFFER_SIZE);
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8), WRITER_BUFFER_SIZE);
+        if (header != null) {
+            Printer printer = printer(out);
+            printer.head(header, printHeader);
+            for (DynamicTableEntity dynamicTableEntity : segment.getResults()) {
+                printer.write(dynamicTableEntity, header);
+            }
+        }
+        out.flush();
+
+        return new Page(buffer, segment);
+    }
+
+    private static void writePage(Future<Page> future, OutputStream os, ExportCheckpoint checkpoint,
+                                  Queue<ByteArrayOutputStream> buffers)
+            throws IOException, InterruptedException {
+        Page page;
+        try {
+            page = future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        page.buffer.writeTo(os);
+        if (checkpoint != null && page.segment.getContinuationToken() != null) {
+            os.flush();
+            checkpoint.record(page.segment.getContinuationToken(), page.segment.getResults().size(), page.buffer.size());
+        }
+
+        page.buffer.reset();
+        buffers.add(page.buffer);
+    }
 }
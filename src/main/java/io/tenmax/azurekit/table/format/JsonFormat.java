@@ -1,33 +1,42 @@
 package io.tenmax.azurekit.table.format;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.microsoft.azure.storage.table.DynamicTableEntity;
 import com.microsoft.azure.storage.table.EntityProperty;
 
-import java.io.PrintStream;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 
+/**
+ * Writes every row as a JSON object of the string values, escaped the same
+ * way as Gson does by default, and without the null values.
+ */
 public class JsonFormat extends Format {
-    Gson gson = new Gson();
 
     @Override
-    public void head(String[] columns, boolean printHeader, PrintStream out) {
+    public Printer printer(Writer out) {
+        // every row is a top level value of the same writer
+        JsonWriter json = new JsonWriter(out);
+        json.setLenient(true);
+        json.setHtmlSafe(true);
+        json.setSerializeNulls(false);
 
-    }
-
-    @Override
-    public String map(DynamicTableEntity dynamicTableEntity) {
-        Map<String, String> row = new HashMap<>();
+        return new Printer() {
+            @Override
+            public void head(String[] columns, boolean printHeader) {
 
-        try {
-            for (Map.Entry<String, EntityProperty> entry : dynamicTableEntity.getProperties().entrySet()) {
-                row.put(entry.getKey(), entry.getValue().getValueAsString());
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
 
-        return gson.toJson(row);
+            @Override
+            public void write(DynamicTableEntity dynamicTableEntity, String[] columns) throws IOException {
+                json.beginObject();
+                for (Map.Entry<String, EntityProperty> entry : dynamicTableEntity.getProperties().entrySet()) {
+                    json.name(entry.getKey()).value(entry.getValue().getValueAsString());
+                }
+                json.endObject();
+                out.write(lineSeparator);
+            }
+        };
     }
 }